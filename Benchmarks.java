@@ -0,0 +1,149 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+// Microbenchmarks for the request path, run with bench.sh. Each benchmark is warmed up first and
+// then measured over several fixed-length iterations, in the manner of JMH; results go to a
+// volatile sink so the JIT cannot remove the work. Usage: java Benchmarks [name filter]
+public class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+    private static final int BATCH = 16; // Operations between clock reads
+
+    private static volatile Object sink;
+
+    private interface Benchmark {
+        Object run() throws Exception;
+    }
+
+    private static class Entry {
+        private final String name;
+        private final Benchmark benchmark;
+
+        public Entry(String name, Benchmark benchmark) {
+            this.name = name;
+            this.benchmark = benchmark;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Server.loadConfig(); // Parser limits and cache settings come from config.ini, as for the server
+        String filter = args.length > 0 ? args[0] : "";
+
+        Server.ClientHandler handler = new Server.ClientHandler(null);
+        byte[] formBody = "name=John+Doe&email=john%40example.com&subject=Hello&message=Hello%2C+world%21+How+are+you%3F"
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] formHead = ("POST /params_info.html HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + formBody.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] multipartBody = ("--XyZ\r\nContent-Disposition: form-data; name=\"name\"\r\n\r\nJohn Doe\r\n"
+                + "--XyZ\r\nContent-Disposition: form-data; name=\"note\"; filename=\"note.txt\"\r\nContent-Type: text/plain\r\n\r\n"
+                + "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt.\r\n"
+                + "--XyZ--\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] multipartHead = ("POST /params_info.html HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: multipart/form-data; boundary=XyZ\r\nContent-Length: " + multipartBody.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        Server.HttpRequestParser formRequest = new Server.HttpRequestParser();
+        formRequest.parse(formHead, formHead.length);
+        Server.HttpRequestParser multipartRequest = new Server.HttpRequestParser();
+        multipartRequest.parse(multipartHead, multipartHead.length);
+        byte[] requestHead = ("GET /images/Muse.jpg HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+                + "Accept: image/avif,image/webp,*/*\r\n"
+                + "Accept-Language: en-US,en;q=0.5\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Referer: http://localhost:8080/\r\n"
+                + "If-None-Match: \"9f86d081884c7d659a2feaa0c55ad015\"\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        Server.HttpRequestParser parser = new Server.HttpRequestParser();
+        String[] paths = {"index.html", "Muse.jpg", "burger.png", "favicon.ico", "notes.txt"};
+        int[] pathIndex = {0};
+        Path textFile = Paths.get("index.html");
+        Path binaryFile = Paths.get("Muse.jpg");
+        BasicFileAttributes textAttributes = Files.readAttributes(textFile, BasicFileAttributes.class);
+        BasicFileAttributes binaryAttributes = Files.readAttributes(binaryFile, BasicFileAttributes.class);
+        byte[] textBody = Files.readAllBytes(textFile);
+        byte[] binaryBody = Files.readAllBytes(binaryFile);
+
+        List<Entry> benchmarks = new ArrayList<>();
+        benchmarks.add(new Entry("parseForm", () -> {
+            Server.RequestBody body = Server.RequestBody.open(formRequest);
+            body.feed(formBody, 0, formBody.length);
+            return body.parameters();
+        }));
+        benchmarks.add(new Entry("parseMultipart", () -> {
+            Server.RequestBody body = Server.RequestBody.open(multipartRequest);
+            body.feed(multipartBody, 0, multipartBody.length);
+            body.close();
+            return body.files();
+        }));
+        benchmarks.add(new Entry("parseRequestHead", () -> {
+            parser.reset();
+            parser.parse(requestHead, requestHead.length);
+            return parser.header("accept-encoding");
+        }));
+        benchmarks.add(new Entry("getContentType", () -> Server.ClientHandler.getContentType(paths[pathIndex[0]++ % paths.length])));
+        benchmarks.add(new Entry("loadTextFile", () -> Server.CachedResponse.load(textFile, textAttributes, "text/html", null, false, null, false)));
+        benchmarks.add(new Entry("loadBinaryFile", () -> Server.CachedResponse.load(binaryFile, binaryAttributes, "image/jpg", null, false, null, false)));
+        benchmarks.add(new Entry("sendNormalText", () -> {
+            Server.NioEngine.ResponseBuffer out = new Server.NioEngine.ResponseBuffer();
+            handler.sendNormalBinaryResponse(out, 200, "OK", "text/html", textBody);
+            return out;
+        }));
+        benchmarks.add(new Entry("sendChunkedText", () -> {
+            Server.NioEngine.ResponseBuffer out = new Server.NioEngine.ResponseBuffer();
+            handler.sendChunkedBinaryResponse(out, 200, "OK", "text/html", textBody);
+            return out;
+        }));
+        benchmarks.add(new Entry("sendChunkedBinary", () -> {
+            Server.NioEngine.ResponseBuffer out = new Server.NioEngine.ResponseBuffer();
+            handler.sendChunkedBinaryResponse(out, 200, "OK", "image/jpg", binaryBody);
+            return out;
+        }));
+
+        System.out.println(String.format("%-20s %15s %15s %12s", "Benchmark", "ops/s", "ns/op", "error"));
+        for (Entry entry : benchmarks) {
+            if (entry.name.contains(filter)) {
+                measure(entry);
+            }
+        }
+    }
+
+    private static void measure(Entry entry) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(entry.benchmark);
+        }
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+        double mean = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            nanosPerOp[i] = iteration(entry.benchmark);
+            mean += nanosPerOp[i] / MEASURED_ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / (MEASURED_ITERATIONS - 1);
+        }
+        System.out.println(String.format("%-20s %15.0f %15.1f %12.1f", entry.name, 1e9 / mean, mean, Math.sqrt(variance)));
+    }
+
+    // Runs the benchmark for one iteration and returns the average time per operation in nanoseconds
+    private static double iteration(Benchmark benchmark) throws Exception {
+        long operations = 0;
+        long started = System.nanoTime();
+        long deadline = started + ITERATION_NANOS;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink = benchmark.run();
+            }
+            operations += BATCH;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (double) (now - started) / operations;
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Closed-loop load generator for a running server. Every connection thread sends one request,
+// reads the whole response and only then sends the next one, cycling through the requests of a
+// JSON lines traffic file (see traffic.jsonl). After a warmup it reports throughput and latency
+// percentiles. Usage: java LoadGenerator <traffic.jsonl> [host:port] [connections] [seconds] [warmupSeconds]
+public class LoadGenerator {
+    private static final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private static final LongAdder errors = new LongAdder();
+
+    private static class TrafficRequest {
+        private final byte[] bytes; // Encoded request, sent as-is on every replay
+        private final boolean head; // HEAD responses carry no body
+
+        public TrafficRequest(byte[] bytes, boolean head) {
+            this.bytes = bytes;
+            this.head = head;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java LoadGenerator <traffic.jsonl> [host:port] [connections] [seconds] [warmupSeconds]");
+            return;
+        }
+        String[] address = (args.length > 1 ? args[1] : "127.0.0.1:8080").split(":");
+        String host = address[0];
+        int port = Integer.parseInt(address[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int warmupSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        List<TrafficRequest> traffic = loadTraffic(args[0], host + ":" + port);
+        if (traffic.isEmpty()) {
+            System.out.println("No requests found in " + args[0]);
+            return;
+        }
+
+        long measureFrom = System.nanoTime() + warmupSeconds * 1_000_000_000L;
+        long measureUntil = measureFrom + seconds * 1_000_000_000L;
+        Worker[] workers = new Worker[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(host, port, traffic, i, measureFrom, measureUntil);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int total = 0;
+        for (Worker worker : workers) {
+            total += worker.count;
+        }
+        long[] latencies = new long[total];
+        int filled = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, filled, worker.count);
+            filled += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("Requests:    " + total + " in " + seconds + " s over " + connections + " connections (" + errors.sum() + " errors)");
+        System.out.println(String.format("Throughput:  %.1f requests/s", total / (double) seconds));
+        if (total > 0) {
+            System.out.println(String.format("Latency:     p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999), latencies[total - 1] / 1e6));
+        }
+        for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(statuses).entrySet()) {
+            System.out.println("Status " + status.getKey() + ":  " + status.getValue().sum());
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static class Worker implements Runnable {
+        private final String host;
+        private final int port;
+        private final List<TrafficRequest> traffic;
+        private final long measureFrom;
+        private final long measureUntil;
+        private int next; // Each connection starts at a different request of the traffic file
+        private long[] latencies = new long[65536];
+        private int count = 0;
+
+        public Worker(String host, int port, List<TrafficRequest> traffic, int offset, long measureFrom, long measureUntil) {
+            this.host = host;
+            this.port = port;
+            this.traffic = traffic;
+            this.next = offset % traffic.size();
+            this.measureFrom = measureFrom;
+            this.measureUntil = measureUntil;
+        }
+
+        @Override
+        public void run() {
+            Socket socket = null;
+            InputStream in = null;
+            OutputStream out = null;
+            while (System.nanoTime() < measureUntil) {
+                TrafficRequest request = traffic.get(next);
+                next = (next + 1) % traffic.size();
+                try {
+                    if (socket == null) {
+                        socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.connect(new InetSocketAddress(host, port));
+                        in = new BufferedInputStream(socket.getInputStream());
+                        out = socket.getOutputStream();
+                    }
+                    long started = System.nanoTime();
+                    out.write(request.bytes);
+                    out.flush();
+                    boolean keepAlive = readResponse(in, request.head);
+                    long finished = System.nanoTime();
+                    if (started >= measureFrom && finished <= measureUntil) {
+                        record(finished - started);
+                    }
+                    if (!keepAlive) {
+                        socket.close();
+                        socket = null;
+                    }
+                } catch (IOException ex) {
+                    errors.increment();
+                    if (socket != null) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Reconnect on the next request
+                        }
+                        socket = null;
+                    }
+                }
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Done anyway
+                }
+            }
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    // Reads one response and returns whether the server keeps the connection open
+    private static boolean readResponse(InputStream in, boolean head) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+        String[] parts = statusLine.split(" ", 3);
+        int status = Integer.parseInt(parts[1]);
+        statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean keepAlive = true;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if (name.equals("content-length")) {
+                contentLength = Long.parseLong(value);
+            } else if (name.equals("transfer-encoding") && value.equalsIgnoreCase("chunked")) {
+                chunked = true;
+            } else if (name.equals("connection") && value.equalsIgnoreCase("close")) {
+                keepAlive = false;
+            }
+        }
+
+        if (head || status == 304 || status == 204 || status / 100 == 1) {
+            return keepAlive;
+        }
+        if (chunked) {
+            long size;
+            while ((size = Long.parseLong(readLine(in).trim(), 16)) > 0) {
+                skip(in, size + 2); // Chunk data and its CRLF
+            }
+            readLine(in); // Blank line after the last chunk
+        } else if (contentLength >= 0) {
+            skip(in, contentLength);
+        } else {
+            while (in.read() != -1) {
+                // Body ends when the server closes the connection
+            }
+            return false;
+        }
+        return keepAlive;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Connection closed inside the response body");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // One JSON object per line with "method", "path" and optionally "headers" (an object) and "body"
+    private static List<TrafficRequest> loadTraffic(String file, String hostHeader) throws IOException {
+        List<TrafficRequest> traffic = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            Map<String, Object> json = new JsonReader(line).readObject();
+            String method = String.valueOf(json.getOrDefault("method", "GET"));
+            String path = String.valueOf(json.getOrDefault("path", "/"));
+            byte[] body = json.containsKey("body") ? String.valueOf(json.get("body")).getBytes(StandardCharsets.UTF_8) : new byte[0];
+
+            StringBuilder head = new StringBuilder();
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(hostHeader).append("\r\n");
+            Object headers = json.get("headers");
+            if (headers instanceof Map) {
+                for (Map.Entry<?, ?> header : ((Map<?, ?>) headers).entrySet()) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            if (body.length > 0) {
+                if (!(headers instanceof Map) || !((Map<?, ?>) headers).containsKey("Content-Type")) {
+                    head.append("Content-Type: application/x-www-form-urlencoded\r\n");
+                }
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            request.write(body);
+            traffic.add(new TrafficRequest(request.toByteArray(), method.equals("HEAD")));
+        }
+        return traffic;
+    }
+
+    // Just enough JSON for traffic files: objects, arrays, strings, numbers, booleans and null
+    private static class JsonReader {
+        private final String text;
+        private int position = 0;
+
+        public JsonReader(String text) {
+            this.text = text;
+        }
+
+        public Map<String, Object> readObject() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            do {
+                skipWhitespace();
+                String name = readString();
+                expect(':');
+                object.put(name, readValue());
+            } while (next() == ',');
+            position--;
+            expect('}');
+            return object;
+        }
+
+        private Object readValue() throws IOException {
+            char c = peek();
+            if (c == '{') {
+                return readObject();
+            } else if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                position++;
+                if (peek() == ']') {
+                    position++;
+                    return array;
+                }
+                do {
+                    array.add(readValue());
+                } while (next() == ',');
+                position--;
+                expect(']');
+                return array;
+            } else if (c == '"') {
+                return readString();
+            }
+            int start = position;
+            while (position < text.length() && ",}] \t".indexOf(text.charAt(position)) == -1) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.equals("true") || literal.equals("false")) {
+                return Boolean.valueOf(literal);
+            } else if (literal.equals("null")) {
+                return null;
+            }
+            try {
+                return Double.valueOf(literal);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid JSON value at " + start + ": " + literal);
+            }
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c == '\\') {
+                    char escaped = text.charAt(position++);
+                    switch (escaped) {
+                        case 'n': value.append('\n'); break;
+                        case 'r': value.append('\r'); break;
+                        case 't': value.append('\t'); break;
+                        case 'b': value.append('\b'); break;
+                        case 'f': value.append('\f'); break;
+                        case 'u':
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            position += 4;
+                            break;
+                        default: value.append(escaped);
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            throw new IOException("Unterminated JSON string");
+        }
+
+        private void expect(char expected) throws IOException {
+            if (next() != expected) {
+                throw new IOException("Expected '" + expected + "' at position " + (position - 1) + " of " + text);
+            }
+        }
+
+        private char next() {
+            skipWhitespace();
+            return position < text.length() ? text.charAt(position++) : 0;
+        }
+
+        private char peek() {
+            skipWhitespace();
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
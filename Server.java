@@ -1,16 +1,52 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class Server {
     private static final String CONFIG_FILE = "config.ini";
-    private static int port;
-    private static String root;
-    private static String defaultPage;
-    private static int maxThreads;
+    private static volatile Config config; // Replaced as a whole by a reload
+    private static ResponseCache responseCache; // null when cacheSize is 0
+    private static volatile FileIndex fileIndex; // Request paths resolved to the files under root, swapped on reload
+    private static final int MAX_RANGES = 16; // More ranges than this in one request are ignored
+    private static final EntityTagCache entityTags = new EntityTagCache();
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
     private static ExecutorService threadPool;
-    private static boolean useChunked = false; 
+    private static Semaphore connectionPermits; // Bounds concurrent connections when each one gets its own virtual thread
+    private static volatile ServerSocketChannel listener; // Blocking engine's listening socket, closed to stop accepting
+    private static volatile NioEngine nioEngine;
+    static volatile boolean shuttingDown; // Set once by the shutdown hook: no new connections, no more keep-alive
 
 
 
@@ -20,7 +56,17 @@ public class Server {
         
         try {
             loadConfig(); // Load server configuration
-            threadPool = Executors.newFixedThreadPool(maxThreads); // Create thread pool
+            Log.start(config.logFile, config.logMaxBytes, config.logMaxFiles, config.logBufferSize, config.logLevel); // Start the background log writer
+            Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown, "shutdown")); // SIGTERM and Ctrl-C drain first
+            fileIndex = new FileIndex(Paths.get(config.root), Paths.get(config.defaultPage));
+            fileIndex.start(); // Scan root once, then follow changes to it
+            System.out.println("Indexed " + fileIndex.size() + " files under " + config.root);
+            if (config.cacheSize > 0) {
+                responseCache = new ResponseCache(config.cacheSize); // Cache small static files in memory
+            }
+            if (!"nio".equals(config.engine)) {
+                threadPool = createThreadPool(); // Create thread pool
+            }
             startServer(); // Start server
         } catch (Exception ex) {
             System.out.println("Server startup failed: " + ex.getMessage()); // Print startup failure message
@@ -32,391 +78,1484 @@ public class Server {
     }
 
     private static void startServer() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Web Server is listening on port " + port); // Print listening message
+        if ("nio".equals(config.engine)) {
+            nioEngine = new NioEngine(config.eventLoops);
+            nioEngine.run(config.port);
+            return;
+        }
 
-            while (true) {
-                Socket socket = serverSocket.accept(); // Accept incoming connection
-                threadPool.execute(new ClientHandler(socket)); // Execute client handler in thread pool
+        // Opened through a channel so accepted sockets can use FileChannel.transferTo (sendfile)
+        try (ServerSocketChannel serverChannel = openListener(config.port)) {
+            listener = serverChannel;
+            ServerSocket serverSocket = serverChannel.socket();
+            ClientHandler.startWatchdog();
+            System.out.println("Web Server is listening on port " + config.port); // Print listening message
+
+            while (!shuttingDown) {
+                if (connectionPermits == null) {
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept(); // Accept incoming connection
+                    } catch (ClosedChannelException ex) {
+                        break; // Closed by the shutdown hook
+                    }
+                    try {
+                        threadPool.execute(new ClientHandler(socket)); // Execute client handler in thread pool
+                    } catch (RejectedExecutionException ex) {
+                        ClientHandler.reject(socket); // Every thread is busy and maxQueue connections wait already
+                    }
+                    continue;
+                }
+
+                // Stop accepting while maxConnections clients are being served; new ones wait in the listen backlog
+                connectionPermits.acquireUninterruptibly();
+                Socket socket;
+                try {
+                    socket = serverSocket.accept(); // Accept incoming connection
+                } catch (ClosedChannelException ex) {
+                    connectionPermits.release();
+                    break; // Closed by the shutdown hook
+                } catch (IOException ex) {
+                    connectionPermits.release();
+                    throw ex;
+                }
+                ClientHandler handler = new ClientHandler(socket);
+                threadPool.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
+            }
+        }
+    }
+
+    // With reusePort several server processes can listen on the same port at once, so a new one can
+    // be started before the old one is stopped and drained: a restart without refused connections
+    static ServerSocketChannel openListener(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if (config.reusePort) {
+            if (serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                System.out.println("SO_REUSEPORT is not supported on this platform, reusePort is ignored");
+            }
+        }
+        serverChannel.bind(new InetSocketAddress(port));
+        return serverChannel;
+    }
+
+    // Shutdown hook: stop accepting, let requests in progress finish with "Connection: close", close
+    // idle keep-alive connections, and after shutdownTimeout close whatever is left
+    private static void shutdown() {
+        shuttingDown = true;
+        long deadline = System.currentTimeMillis() + config.shutdownTimeout;
+        Log.info("Shutting down, draining connections for up to " + config.shutdownTimeout + " ms");
+        try {
+            if (nioEngine != null) {
+                nioEngine.shutdown(deadline);
+            } else {
+                if (listener != null) {
+                    listener.close();
+                }
+                if (threadPool != null) {
+                    threadPool.shutdown(); // Connections already accepted are still served
+                    while (!threadPool.awaitTermination(50, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < deadline) {
+                        ClientHandler.closeIdleConnections(); // Also catches connections that went idle since the last pass
+                    }
+                    if (!threadPool.isTerminated()) {
+                        Log.info("Closing " + ClientHandler.closeAllConnections() + " connections still open after " + config.shutdownTimeout + " ms");
+                        threadPool.shutdownNow();
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            Log.error("Shutdown did not complete", ex);
+        }
+        if (fileIndex != null) {
+            fileIndex.stop();
+        }
+        Log.info("Shutdown complete");
+        Log.flush(); // Last, so the access log has every drained request
+    }
+
+    // Re-reads config.ini without dropping connections. Settings read per request or per connection apply
+    // at once, the pool is resized in place and root is indexed again; the listener, the engine and the
+    // log keep the settings they were started with
+    static synchronized String reloadConfig() throws IOException {
+        Config previous = config;
+        Config next = readConfig(); // Throws before anything changes if a value is missing or invalid
+        String[] startupSettings = { "port", "engine", "executor", "eventLoops", "maxConnections", "maxQueue", "cacheSize", "reusePort", "logFile", "logLevel" };
+        String[] before = { String.valueOf(previous.port), previous.engine, previous.executor, String.valueOf(previous.eventLoops), String.valueOf(previous.maxConnections),
+                String.valueOf(previous.maxQueue), String.valueOf(previous.cacheSize), String.valueOf(previous.reusePort), previous.logFile, previous.logLevel };
+        String[] after = { String.valueOf(next.port), next.engine, next.executor, String.valueOf(next.eventLoops), String.valueOf(next.maxConnections),
+                String.valueOf(next.maxQueue), String.valueOf(next.cacheSize), String.valueOf(next.reusePort), next.logFile, next.logLevel };
+
+        // Entries carry headers built from root, defaultPage and the maxAge settings, so the index is built
+        // once the new settings are visible, and the old settings come back if the new root cannot be indexed
+        config = next;
+        FileIndex index;
+        try {
+            index = new FileIndex(Paths.get(next.root), Paths.get(next.defaultPage));
+            index.start();
+        } catch (IOException | RuntimeException ex) {
+            config = previous;
+            throw ex;
+        }
+        FileIndex previousIndex = fileIndex;
+        fileIndex = index;
+        previousIndex.stop();
+        if (responseCache != null) {
+            responseCache.clear();
+        }
+        if (threadPool instanceof ThreadPoolExecutor) {
+            // Threads above a smaller size exit once their connection is done
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) threadPool;
+            if (next.maxThreads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(next.maxThreads);
+                pool.setCorePoolSize(next.maxThreads);
+            } else {
+                pool.setCorePoolSize(next.maxThreads);
+                pool.setMaximumPoolSize(next.maxThreads);
+            }
+        }
+
+        StringBuilder report = new StringBuilder("Reloaded " + CONFIG_FILE + ": maxThreads=" + next.maxThreads + ", " + index.size() + " files indexed under " + next.root + "\n");
+        List<String> ignored = new ArrayList<>();
+        for (int i = 0; i < startupSettings.length; i++) {
+            if (!Objects.equals(before[i], after[i])) {
+                ignored.add(startupSettings[i]);
+            }
+        }
+        if (!ignored.isEmpty()) {
+            report.append("Changed but only applied on restart: ").append(String.join(", ", ignored)).append("\n");
+        }
+        Log.info(report.toString().trim());
+        return report.toString();
+    }
+
+    private static ExecutorService createThreadPool() {
+        if ("virtual".equals(config.executor)) {
+            try {
+                // Looked up reflectively so the server still compiles and runs on JDKs older than 21
+                ExecutorService virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                connectionPermits = new Semaphore(config.maxConnections);
+                System.out.println("Serving each connection on a virtual thread (maxConnections=" + config.maxConnections + ")");
+                return virtualThreads;
+            } catch (ReflectiveOperationException ex) {
+                System.out.println("Virtual threads are not supported by this JVM, using " + config.maxThreads + " platform threads instead");
             }
         }
+        // Connections wait for a thread in a bounded queue; once it is full they are turned away with 503
+        BlockingQueue<Runnable> queue = config.maxQueue > 0 ? new ArrayBlockingQueue<>(config.maxQueue) : new LinkedBlockingQueue<>();
+        return new ThreadPoolExecutor(config.maxThreads, config.maxThreads, 0L, TimeUnit.MILLISECONDS, queue);
     }
 
-    private static void loadConfig() throws IOException {
+    static void loadConfig() throws IOException {
+        config = readConfig();
+    }
+
+    // Parses config.ini completely before anything is published, so a bad value fails the whole load
+    private static Config readConfig() throws IOException {
         Properties prop = new Properties();
         try (InputStream input = new FileInputStream(CONFIG_FILE)) {
             prop.load(input);
-            port = Integer.parseInt(prop.getProperty("port"));
-            root = prop.getProperty("root").replace("~", System.getProperty("user.home"));
-            defaultPage = prop.getProperty("defaultPage");
-            maxThreads = Integer.parseInt(prop.getProperty("maxThreads"));
+        }
+        return new Config(prop);
+    }
+
+    // Settings from config.ini. A Config is immutable and replaced as a whole through the volatile config
+    // field, so request threads see either the old settings or the new ones after a reload, never a mix
+    static final class Config {
+        final int port;
+        final String root;
+        final String defaultPage;
+        final int maxThreads;
+        final int keepAliveTimeout;
+        final int maxKeepAliveRequests;
+        final int maxHeaderSize;
+        final int maxHeaderCount;
+        final long fileStreamThreshold;
+        final long cacheSize;
+        final long cacheMaxFileSize;
+        final String cacheStatusPath;
+        final String metricsPath;
+        final long maxBodySize;
+        final long maxFormSize;
+        final long uploadMemoryThreshold;
+        final String uploadDir;
+        final boolean compression;
+        final int compressionMinSize;
+        final Map<String, Integer> maxAges; // Cache-Control max-age by content type or major type
+        final Integer defaultMaxAge; // null: no Cache-Control header
+        final String logFile;
+        final String logLevel;
+        final long logMaxBytes;
+        final int logMaxFiles;
+        final int logBufferSize;
+        final String engine;
+        final String executor;
+        final int maxConnections;
+        final int eventLoops;
+        final int maxQueue;
+        final int retryAfter;
+        final double rateLimit;
+        final int rateLimitBurst;
+        final int readTimeout;
+        final long writeTimeout;
+        final long shutdownTimeout;
+        final String reloadPath;
+        final boolean reusePort;
+
+        Config(Properties prop) {
+            port = intValue(prop, "port", null, 0);
+            if (port > 65535) {
+                throw new IllegalArgumentException("port: " + port + " is not a TCP port");
+            }
+            root = text(prop, "root", null).replace("~", System.getProperty("user.home"));
+            defaultPage = text(prop, "defaultPage", null);
+            maxThreads = intValue(prop, "maxThreads", null, 1);
+            keepAliveTimeout = intValue(prop, "keepAliveTimeout", "5000", 1); // 0 would be an infinite socket timeout on the blocking engine
+            maxKeepAliveRequests = intValue(prop, "maxKeepAliveRequests", "100", 1);
+            maxHeaderSize = intValue(prop, "maxHeaderSize", "8192", 64);
+            maxHeaderCount = intValue(prop, "maxHeaderCount", "100", 1);
+            fileStreamThreshold = longValue(prop, "fileStreamThreshold", "65536");
+            cacheSize = longValue(prop, "cacheSize", "16777216");
+            cacheMaxFileSize = longValue(prop, "cacheMaxFileSize", "1048576");
+            cacheStatusPath = text(prop, "cacheStatusPath", "/cache-status");
+            metricsPath = text(prop, "metricsPath", "/metrics");
+            maxBodySize = longValue(prop, "maxBodySize", "104857600");
+            maxFormSize = longValue(prop, "maxFormSize", "1048576");
+            uploadMemoryThreshold = longValue(prop, "uploadMemoryThreshold", "65536");
+            uploadDir = text(prop, "uploadDir", System.getProperty("java.io.tmpdir"));
+            compression = booleanValue(prop, "compression", "true");
+            compressionMinSize = intValue(prop, "compressionMinSize", "256", 0);
+            Map<String, Integer> ages = new HashMap<>();
+            for (String name : prop.stringPropertyNames()) {
+                if (name.startsWith("maxAge.")) {
+                    ages.put(name.substring("maxAge.".length()), intValue(prop, name, null, 0));
+                }
+            }
+            maxAges = Collections.unmodifiableMap(ages);
+            defaultMaxAge = prop.getProperty("maxAge") != null ? Integer.valueOf(intValue(prop, "maxAge", null, 0)) : null;
+            logFile = text(prop, "logFile", "");
+            logLevel = oneOf(prop, "logLevel", "info", "error", "info", "debug");
+            logMaxBytes = longValue(prop, "logMaxBytes", "10485760");
+            logMaxFiles = intValue(prop, "logMaxFiles", "5", 0);
+            logBufferSize = intValue(prop, "logBufferSize", "8192", 1);
+            engine = oneOf(prop, "engine", "blocking", "blocking", "nio");
+            executor = oneOf(prop, "executor", "platform", "platform", "virtual");
+            maxConnections = intValue(prop, "maxConnections", "10000", 1);
+            eventLoops = intValue(prop, "eventLoops", String.valueOf(Runtime.getRuntime().availableProcessors()), 1);
+            maxQueue = intValue(prop, "maxQueue", "1000", 0);
+            retryAfter = intValue(prop, "retryAfter", "1", 0);
+            rateLimit = doubleValue(prop, "rateLimit", "0");
+            rateLimitBurst = intValue(prop, "rateLimitBurst", "20", 0);
+            readTimeout = intValue(prop, "readTimeout", "10000", 0);
+            writeTimeout = longValue(prop, "writeTimeout", "30000");
+            shutdownTimeout = longValue(prop, "shutdownTimeout", "30000");
+            reloadPath = text(prop, "reloadPath", "/admin/reload");
+            reusePort = booleanValue(prop, "reusePort", "false");
+        }
+
+        // Each reader names the setting in its error; a missing default means the setting is required
+        private static String text(Properties prop, String name, String defaultValue) {
+            String value = prop.getProperty(name, defaultValue);
+            if (value == null) {
+                throw new IllegalArgumentException(name + ": missing");
+            }
+            return value.trim();
+        }
+
+        private static int intValue(Properties prop, String name, String defaultValue, int min) {
+            long value = longValue(prop, name, defaultValue);
+            if (value < min || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(name + ": " + value + " is out of range");
+            }
+            return (int) value;
+        }
+
+        private static long longValue(Properties prop, String name, String defaultValue) {
+            String value = text(prop, name, defaultValue);
+            long parsed;
+            try {
+                parsed = Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(name + ": \"" + value + "\" is not a number");
+            }
+            if (parsed < 0) {
+                throw new IllegalArgumentException(name + ": " + parsed + " is negative");
+            }
+            return parsed;
+        }
+
+        private static double doubleValue(Properties prop, String name, String defaultValue) {
+            String value = text(prop, name, defaultValue);
+            try {
+                double parsed = Double.parseDouble(value);
+                if (parsed >= 0) {
+                    return parsed;
+                }
+            } catch (NumberFormatException ex) {
+                // Reported below
+            }
+            throw new IllegalArgumentException(name + ": \"" + value + "\" is not a non-negative number");
+        }
+
+        private static boolean booleanValue(Properties prop, String name, String defaultValue) {
+            return Boolean.parseBoolean(oneOf(prop, name, defaultValue, "true", "false"));
+        }
+
+        private static String oneOf(Properties prop, String name, String defaultValue, String... allowed) {
+            String value = text(prop, name, defaultValue);
+            for (String candidate : allowed) {
+                if (candidate.equalsIgnoreCase(value)) {
+                    return candidate;
+                }
+            }
+            throw new IllegalArgumentException(name + ": \"" + value + "\" is not one of " + String.join(", ", allowed));
         }
     }
 
-    private static class ClientHandler implements Runnable {
+    static class ClientHandler implements Runnable {
+        private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        private static final long MAX_TRANSFER = 1 << 20;
+        private static final int REJECT_LINGER = 100; // Milliseconds a rejected connection stays open for its request to arrive
+        private static final ScheduledExecutorService rejectCloser = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "reject-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private static final Set<ClientHandler> openConnections = ConcurrentHashMap.newKeySet(); // Blocking engine, for shutdown
         private Socket socket;
+        private InetAddress remoteAddress; // For the access log
+        private boolean keepAlive; // Whether the connection stays open after the current response
+        private boolean http11; // Whether the current request allows chunked responses
+        private boolean chunked; // Transfer coding of the current response, decided per request
+        private int chunkSize = 65536; // Largest chunk written at once, matched to the socket send buffer
+        private int responseStatus; // Status and body size of the last response, for the access log
+        private long responseBytes;
+        private long responseStarted; // When the response started to be produced, for the write histogram
+        private volatile boolean idle; // Waiting for the next request with nothing buffered, safe to close on shutdown
+        private volatile long writingSince; // Start of the socket write in progress, 0 when none; checked by the watchdog
+        private volatile boolean writeTimedOut; // Closed by the watchdog, the failure that follows is expected
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
+            this.remoteAddress = socket != null ? socket.getInetAddress() : null;
+        }
+
+        // Answers a connection the pool has no room for with 503, on the accepting thread. The response fits in
+        // the empty socket send buffer, so this does not block; closing is left to rejectCloser
+        static void reject(Socket socket) {
+            ClientHandler handler = new ClientHandler(socket);
+            try {
+                handler.sendRetryLater(socket.getOutputStream(), 503, "Service Unavailable", config.retryAfter);
+                handler.recordRequest("-", "-", 0);
+                socket.shutdownOutput();
+            } catch (IOException ex) {
+                closeQuietly(socket); // The client is gone already
+                return;
+            }
+            // Closing with unread request bytes would reset the connection, possibly before the client reads the 503.
+            // The request has usually not arrived yet, so the socket is closed REJECT_LINGER later, once the request
+            // bytes that did arrive are discarded
+            rejectCloser.schedule(() -> {
+                try {
+                    InputStream in = socket.getInputStream();
+                    int drained = 0;
+                    int available;
+                    while (drained < config.maxHeaderSize && (available = in.available()) > 0) {
+                        drained += (int) in.skip(available);
+                    }
+                } catch (IOException ex) {
+                    // The client is gone already
+                } finally {
+                    closeQuietly(socket);
+                }
+            }, REJECT_LINGER, TimeUnit.MILLISECONDS);
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Nothing left to clean up
+            }
+        }
+
+        // Blocking sockets have no write timeout, so a watchdog thread closes connections whose current
+        // write has not completed within writeTimeout: the client stopped reading its response
+        static void startWatchdog() {
+            if (config.writeTimeout <= 0) {
+                return;
+            }
+            Thread watchdog = new Thread(() -> {
+                while (true) {
+                    LockSupport.parkNanos(Math.min(config.writeTimeout, 1000) * 1_000_000L);
+                    long now = System.nanoTime();
+                    for (ClientHandler handler : openConnections) {
+                        long since = handler.writingSince;
+                        if (since != 0 && now - since > config.writeTimeout * 1_000_000L && !handler.writeTimedOut) {
+                            handler.writeTimedOut = true;
+                            Log.info("Closing connection from " + handler.remoteAddress + ", a write made no progress for " + config.writeTimeout + " ms");
+                            try {
+                                // Shutting down output wakes a blocked write, sendfile included, which close alone does not
+                                handler.socket.shutdownOutput();
+                                handler.socket.close();
+                            } catch (IOException ex) {
+                                // Already closed
+                            }
+                        }
+                    }
+                }
+            }, "write-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+
+        // Closes connections that wait for their next request; ones in the middle of a request are left to finish
+        static void closeIdleConnections() {
+            for (ClientHandler handler : openConnections) {
+                if (handler.idle) {
+                    try {
+                        handler.socket.shutdownInput(); // The blocked read sees end of stream and the handler exits normally
+                    } catch (IOException ex) {
+                        // Already closed
+                    }
+                }
+            }
+        }
+
+        // Closes every connection still open; returns how many there were
+        static int closeAllConnections() {
+            int count = 0;
+            for (ClientHandler handler : openConnections) {
+                try {
+                    handler.socket.close();
+                    count++;
+                } catch (IOException ex) {
+                    // Already closed
+                }
+            }
+            return count;
         }
 
         @Override
         public void run() {
-            PrintWriter out = null;
+            OutputStream out = null;
+            ByteBuffer buffer = BufferPool.acquire();
+            ByteBuffer bodyBuffer = null; // Taken from the pool for request bodies that do not fit behind the head
+            Metrics.activeConnections.increment();
+            openConnections.add(this);
             try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                OutputStream binaryOut = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                OutputStream binaryOut = new BufferedOutputStream(new TimedOutputStream(socket.getOutputStream()));
             ) {
-                out = new PrintWriter(binaryOut, true);
-                String requestLine = in.readLine();
-                System.out.println("Received HTTP request: " + requestLine);
-                if (requestLine == null) {
-                    sendResponse(out, 400, "Bad Request", "text/plain", "Empty request.");
-                    return;
-                }
-        
-                String[] requestParts = requestLine.split(" ");
-                if (requestParts.length != 3) {
-                    sendResponse(out, 400, "Bad Request", "text/plain", "Malformed request.");
-                    return;
-                }
-        
-                String method = requestParts[0];
-                String resourcePath = requestParts[1];
-        
-                if ("GET".equals(method)) {
-                    //System.out.println(resourcePath.toString()); for deBugging
-                    handleGetRequest(resourcePath, out, binaryOut);
-                } else if ("POST".equals(method)) {
-                    String requestBody = "";
+                out = binaryOut;
+                chunkSize = socket.getSendBufferSize();
+                socket.setTcpNoDelay(true); // Headers and body often leave in separate writes, Nagle would hold the second one back
+                HttpRequestParser request = new HttpRequestParser();
+                byte[] data = buffer.array();
+                int limit = 0; // Bytes of data filled from the socket
+                int requestCount = 0;
+
+                // Serve requests one after another on the same connection; pipelined requests
+                // wait in the buffer and are answered in the order they arrived
+                do {
+                    request.reset();
+                    long parseStarted = System.nanoTime();
+                    int result = request.parse(data, limit);
+                    long parseNanos = System.nanoTime() - parseStarted;
+                    boolean timedOut = false;
+                    long headStarted = 0; // When the first byte of this request arrived
+                    while (result == HttpRequestParser.NEED_MORE) {
+                        int read;
+                        // A new connection is not idle: its first request may be queued behind others and is still answered
+                        idle = limit == 0 && requestCount > 0;
+                        if (idle && shuttingDown) {
+                            break; // Draining: no new request is started on this connection
+                        }
+                        if (limit == 0) {
+                            socket.setSoTimeout(config.keepAliveTimeout);
+                        } else if (config.readTimeout > 0) {
+                            // The whole head must arrive within readTimeout, however slowly its bytes trickle in
+                            if (headStarted == 0) {
+                                headStarted = System.nanoTime();
+                            }
+                            long remaining = config.readTimeout - (System.nanoTime() - headStarted) / 1_000_000L;
+                            if (remaining <= 0) {
+                                timedOut = true;
+                                break;
+                            }
+                            socket.setSoTimeout((int) remaining);
+                        }
+                        try {
+                            read = in.read(data, limit, data.length - limit);
+                        } catch (SocketTimeoutException ex) {
+                            timedOut = true; // Idle past keepAliveTimeout, or the head is still incomplete after readTimeout
+                            break;
+                        } finally {
+                            idle = false;
+                        }
+                        if (read == -1) {
+                            break;
+                        }
+                        limit += read;
+                        Metrics.bytesIn.add(read);
+                        if (limit == data.length && data.length < config.maxHeaderSize) {
+                            buffer = BufferPool.grow(buffer, limit); // A reload raised maxHeaderSize while this head was arriving
+                            data = buffer.array();
+                        }
+                        parseStarted = System.nanoTime();
+                        result = request.parse(data, limit);
+                        parseNanos += System.nanoTime() - parseStarted;
+                    }
+                    if (result == HttpRequestParser.NEED_MORE) {
+                        if (timedOut && limit > 0) {
+                            keepAlive = false;
+                            sendResponse(out, 408, "Request Timeout", "text/plain", "Request not received in time.");
+                            recordRequest("-", "-", 0);
+                        } else if (requestCount == 0 && !timedOut && !shuttingDown && !request.hasStarted()) {
+                            keepAlive = false;
+                            sendResponse(out, 400, "Bad Request", "text/plain", "Empty request.");
+                        }
+                        break;
+                    }
+                    requestCount++;
+                    Metrics.parse.record(parseNanos);
+                    if (result == HttpRequestParser.ERROR) {
+                        keepAlive = false;
+                        sendResponse(out, request.errorStatus(), request.errorStatusMessage(), "text/plain", request.errorText());
+                        recordRequest("-", "-", 0);
+                        break;
+                    }
+
+                    keepAlive = request.isKeepAlive() && requestCount < config.maxKeepAliveRequests && !shuttingDown;
+                    long wait = RateLimiter.acquire(remoteAddress);
+                    if (wait > 0) {
+                        // Closing also skips any body, and the connection's thread is free for other clients
+                        sendRetryLater(out, 429, "Too Many Requests", wait);
+                        recordRequest(request.method(), request.target(), 0);
+                        break;
+                    }
+
+                    // The body streams through RequestBody as it arrives: first the bytes already behind the
+                    // headers, then reads into bodyBuffer, which leaves the request head in data untouched
+                    RequestBody body = RequestBody.open(request);
+                    int headerEnd = request.headerEnd();
+                    byte[] rest = data; // Holds the bytes after the body, the start of the next pipelined request
+                    int restStart = headerEnd + body.feed(data, headerEnd, limit - headerEnd);
+                    int restEnd = limit;
+                    if (body.expectsContinue()) {
+                        out.write(RequestBody.CONTINUE);
+                        out.flush();
+                    }
+                    boolean bodyTimedOut = false;
+                    socket.setSoTimeout(config.readTimeout); // Longest pause allowed between two reads of a body
                     try {
-                        int contentLength = 0;
-                        String contentLengthHeader = null;
-        
-                        // Read request headers to find Content-Length
-                        while (true) {
-                            String headerLine = in.readLine();
-                            if (headerLine == null || headerLine.isEmpty()) {
+                        while (!body.isComplete() && body.errorStatus() == 0) {
+                            if (bodyBuffer == null) {
+                                bodyBuffer = BufferPool.acquire();
+                            }
+                            rest = bodyBuffer.array();
+                            int read;
+                            try {
+                                read = in.read(rest);
+                            } catch (SocketTimeoutException ex) {
+                                bodyTimedOut = true;
                                 break;
                             }
-                            if (headerLine.startsWith("Content-Length: ")) {
-                                contentLengthHeader = headerLine;
+                            if (read == -1) {
+                                break;
                             }
+                            Metrics.bytesIn.add(read);
+                            restStart = body.feed(rest, 0, read);
+                            restEnd = read;
                         }
-        
-                        if (contentLengthHeader != null) {
-                            contentLength = Integer.parseInt(contentLengthHeader.substring("Content-Length: ".length()));
+                        if (body.errorStatus() != 0) {
+                            keepAlive = false; // The rest of the body is still on its way, the connection cannot be reused
+                            sendResponse(out, body.errorStatus(), body.errorStatusMessage(), "text/plain", body.errorText());
+                            recordRequest(request.method(), request.target(), 0);
+                            break;
                         }
-        
-                        // Read the POST request body
-                        char[] buffer = new char[contentLength];
-                        in.read(buffer, 0, contentLength);
-                        requestBody = new String(buffer);
-                    } catch (IOException ex) {
-                        // Handle any exceptions
+                        if (bodyTimedOut) {
+                            keepAlive = false;
+                            sendResponse(out, 408, "Request Timeout", "text/plain", "Request body not received in time.");
+                            recordRequest(request.method(), request.target(), 0);
+                            break;
+                        }
+                        if (!body.isComplete()) {
+                            break; // Client went away in the middle of the body
+                        }
+                        handleRequest(request.method(), request.target(), request, body, out);
+                    } finally {
+                        body.close();
                     }
-        
-                    System.out.println("Received POST data:\n" + requestBody); // Debugging line
-        
-                    Map<String, String> parameters = parseParameters(requestBody);
-                    handlePostRequest(resourcePath, parameters, out);
-                } else {
-                    sendResponse(out, 501, "Not Implemented", "text/plain", "Method not implemented.");
-                }
-        
+
+                    // Move pipelined bytes of the next request to the front of the buffer
+                    System.arraycopy(rest, restStart, data, 0, restEnd - restStart);
+                    limit = restEnd - restStart;
+                } while (keepAlive);
+
             } catch (IOException ex) {
+                if (writeTimedOut) {
+                    return; // Logged by the watchdog; the finally block still cleans up
+                }
                 if (out != null) {
-                    sendResponse(out, 500, "Internal Server Error", "text/plain", "Internal server error.");
+                    try {
+                        keepAlive = false;
+                        sendResponse(out, 500, "Internal Server Error", "text/plain", "Internal server error.");
+                    } catch (IOException e) {
+                        // Connection is already broken, nothing more to send
+                    }
                 }
-                ex.printStackTrace();
+                Log.error("Connection from " + remoteAddress + " failed", ex);
             } finally {
+                openConnections.remove(this);
+                Metrics.activeConnections.decrement();
+                BufferPool.release(buffer);
+                if (bodyBuffer != null) {
+                    BufferPool.release(bodyBuffer);
+                }
                 try {
-                    if (out != null) {
-                        out.close();
-                    }
                     socket.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Could not close connection", e);
                 }
             }
         }
-        
 
-        //private static ThreadLocal<Boolean> useChunked = ThreadLocal.withInitial(() -> false);
+        // The socket's output stream, marking each write for the watchdog
+        private class TimedOutputStream extends FilterOutputStream {
+            TimedOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                writingSince = System.nanoTime();
+                try {
+                    out.write(data, offset, length);
+                } finally {
+                    writingSince = 0;
+                }
+            }
+        }
+
+        private void handleRequest(String method, String resourcePath, HttpRequestParser request, RequestBody body, OutputStream out) throws IOException {
+            long started = System.nanoTime();
+            responseStarted = started;
+            responseStatus = 0;
+            responseBytes = 0;
+            http11 = request.isHttp11();
+            chunked = false;
+            if (shuttingDown) {
+                keepAlive = false; // Draining: this is the connection's last response
+            }
+            try {
+                if ("GET".equals(method)) {
+                    //System.out.println(resourcePath.toString()); for deBugging
+                    handleGetRequest(resourcePath, request, out, out);
+                } else if ("POST".equals(method) && !config.reloadPath.isEmpty() && resourcePath.equals(config.reloadPath)) {
+                    handleReload(out);
+                } else if ("POST".equals(method)) {
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("Received POST data: " + body.received() + " bytes, parameters " + body.parameters() + ", " + body.files().size() + " files");
+                    }
+
+                    handlePostRequest(resourcePath, body.parameters(), body.files(), out);
+                } else {
+                    sendResponse(out, 501, "Not Implemented", "text/plain", "Method not implemented.");
+                }
+            } finally {
+                long finished = System.nanoTime();
+                if (socket != null) {
+                    // Blocking writes are done once the handler returns; nio responses are timed by their event loop
+                    Metrics.write.record(finished - responseStarted);
+                }
+                recordRequest(method, resourcePath, finished - started);
+            }
+        }
+
+        // One access log line and one metrics sample per response
+        private void recordRequest(String method, String target, long nanos) {
+            Log.access(remoteAddress, method, target, responseStatus, responseBytes, nanos);
+            Metrics.request(method, responseStatus, responseBytes);
+        }
 
-        private static void sendResponse(PrintWriter out, int statusCode, String statusMessage, String contentType, String responseText) {
-            System.out.println("Response Content:\n" + responseText);
-            if (useChunked) {
-                //System.out.println("using chunked HTML");
+        private void sendResponse(OutputStream out, int statusCode, String statusMessage, String contentType, String responseText) throws IOException {
+            if (Log.isDebugEnabled()) {
+                Log.debug("Response Content:\n" + responseText);
+            }
+            if (chunked) {
                 sendChunkedResponse(out, statusCode, statusMessage, contentType, responseText);
             } else {
-                //System.out.println("not using chunked HTML");
                 sendNormalResponse(out, statusCode, statusMessage, contentType, responseText);
             }
         }
 
-        private static void sendBinaryResponse(OutputStream binaryOut, int statusCode, String statusMessage, String contentType, byte[] responseData) throws IOException {
-            System.out.println("Sending Binary Response: Content-Type: " + contentType + ", Size: " + responseData.length + " bytes");
-            if (useChunked) {
-                //System.out.println("using chunked image");
+        private void sendBinaryResponse(OutputStream binaryOut, int statusCode, String statusMessage, String contentType, byte[] responseData) throws IOException {
+            if (Log.isDebugEnabled()) {
+                Log.debug("Sending Binary Response: Content-Type: " + contentType + ", Size: " + responseData.length + " bytes");
+            }
+            if (chunked) {
                 sendChunkedBinaryResponse(binaryOut, statusCode, statusMessage, contentType, responseData);
             } else {
-                //System.out.println("not using chunked image");
                 sendNormalBinaryResponse(binaryOut, statusCode, statusMessage, contentType, responseData);
             }
         }
 
-        private static void sendNormalResponse(PrintWriter out, int statusCode, String statusMessage, String contentType, String responseText) {
-            String httpResponse = "HTTP/1.1 " + statusCode + " " + statusMessage + "\nContent-Type: " + contentType + "\nContent-Length: " + responseText.length() + "\n";
-            System.out.println("Sending HTTP response: \n" + httpResponse);
-            out.println(httpResponse);
-            out.println();
-            out.println(responseText);
-            out.flush();
+        private String buildResponseHeaders(int statusCode, String statusMessage, String contentType, String framingHeader) {
+            responseStatus = statusCode;
+            return buildResponseHeaders(statusCode, statusMessage, contentType, framingHeader, keepAlive);
         }
 
-        private static void sendChunkedResponse(PrintWriter out, int statusCode, String statusMessage, String contentType, String responseText) {
-            String httpResponse = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\nContent-Type: " + contentType + "\r\nTransfer-Encoding: chunked\r\n\r\n";
-            System.out.println("Sending HTTP response: \n" + httpResponse);
-            out.print(httpResponse);
-            out.flush();
-        
-            // Send response body in chunks
-            int chunkSize = 20;
-            for (int i = 0; i < responseText.length(); i += chunkSize) {
-                int endIndex = Math.min(i + chunkSize, responseText.length());
-                String chunk = Integer.toHexString(endIndex - i) + "\r\n" + responseText.substring(i, endIndex) + "\r\n";
-                out.print(chunk);
-                out.flush();
+        private static String buildResponseHeaders(int statusCode, String statusMessage, String contentType, String framingHeader, boolean keepAlive) {
+            return "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\nContent-Type: " + contentType + "\r\n" + framingHeader
+                    + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+        }
+
+        private static void logResponseHeaders(String httpResponse) {
+            if (Log.isDebugEnabled()) {
+                Log.debug("Sending HTTP response: \n" + httpResponse);
             }
-            // Send the last chunk to indicate end of response
-            out.print("0\r\n\r\n");
+        }
+
+        private void sendNormalResponse(OutputStream out, int statusCode, String statusMessage, String contentType, String responseText) throws IOException {
+            byte[] responseData = responseText.getBytes();
+            String httpResponse = buildResponseHeaders(statusCode, statusMessage, contentType, "Content-Length: " + responseData.length);
+            responseBytes = responseData.length;
+            logResponseHeaders(httpResponse);
+            out.write(httpResponse.getBytes());
+            out.write(responseData);
+            out.flush();
+        }
+
+        // 429 or 503 with Retry-After; the connection is closed after it
+        private void sendRetryLater(OutputStream out, int statusCode, String statusMessage, long seconds) throws IOException {
+            keepAlive = false;
+            byte[] responseData = (statusMessage + ", retry in " + seconds + " s.").getBytes();
+            String httpResponse = buildResponseHeaders(statusCode, statusMessage, "text/plain",
+                    "Retry-After: " + seconds + "\r\nContent-Length: " + responseData.length);
+            responseBytes = responseData.length;
+            logResponseHeaders(httpResponse);
+            out.write(httpResponse.getBytes());
+            out.write(responseData);
             out.flush();
         }
 
-        private static void sendNormalBinaryResponse(OutputStream binaryOut, int statusCode, String statusMessage, String contentType, byte[] responseData) throws IOException {
-            PrintWriter headerOut = new PrintWriter(binaryOut, true);
-            String httpResponse = "HTTP/1.1 " + statusCode + " " + statusMessage + "\nContent-Type: " + contentType + "\nContent-Length: " + responseData.length + "\n";
-            System.out.println("Sending HTTP response: \n" + httpResponse);
-            headerOut.println(httpResponse);
-            headerOut.flush();
+        private void sendChunkedResponse(OutputStream out, int statusCode, String statusMessage, String contentType, String responseText) throws IOException {
+            // Chunk sizes count bytes, not characters
+            sendChunkedBinaryResponse(out, statusCode, statusMessage, contentType, responseText.getBytes());
+        }
 
+        void sendNormalBinaryResponse(OutputStream binaryOut, int statusCode, String statusMessage, String contentType, byte[] responseData) throws IOException {
+            String httpResponse = buildResponseHeaders(statusCode, statusMessage, contentType, "Content-Length: " + responseData.length);
+            responseBytes = responseData.length;
+            logResponseHeaders(httpResponse);
+            binaryOut.write(httpResponse.getBytes());
             binaryOut.write(responseData);
             binaryOut.flush();
         }
 
-        private static void sendChunkedBinaryResponse(OutputStream binaryOut, int statusCode, String statusMessage, String contentType, byte[] responseData) throws IOException {
-            PrintWriter headerOut = new PrintWriter(binaryOut, true);
-            String httpResponse = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\nContent-Type: " + contentType + "\r\nTransfer-Encoding: chunked\r\n\r\n";
-            System.out.println("Sending HTTP response: \n" + httpResponse);
-            headerOut.print(httpResponse);
-            headerOut.flush();
-        
-            // Send response body in chunks
-            int chunkSize = 20; // Adjust chunk size as needed
-            for (int i = 0; i < responseData.length; i += chunkSize) {
-                int endIndex = Math.min(i + chunkSize, responseData.length);
-                String chunkSizeHeader = Integer.toHexString(endIndex - i) + "\r\n";
-                binaryOut.write(chunkSizeHeader.getBytes());
-                binaryOut.write(Arrays.copyOfRange(responseData, i, endIndex));
-                binaryOut.write("\r\n".getBytes());
-                binaryOut.flush();
-            }
-            // Send the last chunk to indicate end of response
-            binaryOut.write("0\r\n\r\n".getBytes());
-            binaryOut.flush();
+        void sendChunkedBinaryResponse(OutputStream binaryOut, int statusCode, String statusMessage, String contentType, byte[] responseData) throws IOException {
+            try (ChunkedBodyStream body = startChunkedResponse(binaryOut, statusCode, statusMessage, contentType, "")) {
+                body.write(responseData, 0, responseData.length);
+            }
         }
 
-    
-        private String getContentType(String filePath) {
-            if (filePath.endsWith(".html") || filePath.endsWith(".htm")) {
-                return "text/html";
-            } else if (filePath.endsWith(".bmp") || filePath.endsWith(".gif") || filePath.endsWith(".png") || filePath.endsWith(".jpg") || filePath.endsWith(".jpeg")) {
-                return "image/" + filePath.substring(filePath.lastIndexOf('.') + 1);
-            } else if (filePath.endsWith(".ico")) {
-                return "image/x-icon";
-            } else {
-                return "application/octet-stream";
-            }
+        private ChunkedBodyStream startChunkedResponse(OutputStream out, int statusCode, String statusMessage, String contentType, String extraHeaders) throws IOException {
+            String httpResponse = buildResponseHeaders(statusCode, statusMessage, contentType, extraHeaders + "Transfer-Encoding: chunked");
+            logResponseHeaders(httpResponse);
+            out.write(httpResponse.getBytes());
+            return new ChunkedBodyStream(out);
         }
 
-        private void handleGetRequest(String resourcePath, PrintWriter out, OutputStream binaryOut) {
-            
-            // Sanitize the resourcePath to prevent directory traversal
-            resourcePath = sanitizeResourcePath(resourcePath);
-            if (resourcePath.contains("?chunked:yes")) {
-                useChunked = true;
-                resourcePath = resourcePath.split("\\?")[0]; 
+        // Body of a generated response whose length is not known up front. HTTP/1.1 clients get it
+        // streamed as chunks while it is written; HTTP/1.0 clients cannot take chunks, so for them it
+        // is collected and sent with Content-Length when the stream is closed
+        private OutputStream startGeneratedResponse(OutputStream out, int statusCode, String statusMessage, String contentType) throws IOException {
+            if (http11) {
+                chunked = true;
+                return startChunkedResponse(out, statusCode, statusMessage, contentType, "");
             }
-            else if (resourcePath.equals("/") ) { 
-                useChunked = false;
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    sendNormalBinaryResponse(out, statusCode, statusMessage, contentType, toByteArray());
+                }
+            };
+        }
+
+        // Frames everything written to it as HTTP/1.1 chunks of at most chunkSize bytes. Small writes
+        // are collected first; every chunk then leaves as one gathering write of its size line, the
+        // data and the closing CRLF, taken straight from the caller's array or buffer
+        private class ChunkedBodyStream extends OutputStream {
+            private static final int SMALL_WRITE = 1024; // Writes below this are collected into larger chunks
+            private final OutputStream out;
+            private final boolean queued; // nio responses are queued, so their chunks must not share arrays
+            private byte[] pending; // Allocated on the first small write
+            private int count = 0;
+            private long total = 0;
+
+            public ChunkedBodyStream(OutputStream out) {
+                this.out = out;
+                this.queued = out instanceof NioEngine.ResponseBuffer;
             }
-        
-            if ("/".equals(resourcePath)) {
-                resourcePath = defaultPage;
-            } else {
-                resourcePath = root + resourcePath;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (pending == null) {
+                    pending = new byte[chunkSize];
+                } else if (count == pending.length) {
+                    writePending();
+                }
+                pending[count++] = (byte) b;
             }
-        
 
-            File resourceFile = new File(resourcePath);
-            if (resourceFile.exists() && resourceFile.isFile()) {
-                try {
-                    String contentType = getContentType(resourcePath);
-                    if (contentType.startsWith("text/") || contentType.equals("application/octet-stream")) {
-                        sendResponse(out, 200, "OK", contentType, readFileContents(resourceFile));
-                    } else { // for binary data like images
-                        sendBinaryResponse(binaryOut, 200, "OK", contentType, readBinaryFileContents(resourceFile));
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                if (length < SMALL_WRITE) {
+                    if (pending == null) {
+                        pending = new byte[chunkSize];
                     }
-                } catch (IOException e) {
-                    sendResponse(out, 500, "Internal Server Error", "text/plain", "Internal server error.");
+                    if (count + length > pending.length) {
+                        writePending();
+                    }
+                    System.arraycopy(data, offset, pending, count, length);
+                    count += length;
+                    return;
+                }
+                writePending();
+                while (length > 0) {
+                    // Large writes go out from the caller's array, queued ones are copied into the response
+                    int size = Math.min(length, chunkSize);
+                    writeChunk(ByteBuffer.wrap(data, offset, size), queued);
+                    offset += size;
+                    length -= size;
                 }
-            } else {
-                sendResponse(out, 404, "Not Found", "text/plain", "Resource not found.");
             }
-        }
 
-        private String readFileContents(File file) throws IOException {
-            StringBuilder content = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    content.append(line).append("\n");
+            // Writes a buffer that is not modified afterwards, such as a cached body, without copying it
+            public void write(ByteBuffer data) throws IOException {
+                writePending();
+                ByteBuffer view = data.duplicate();
+                while (view.hasRemaining()) {
+                    int size = Math.min(view.remaining(), chunkSize);
+                    ByteBuffer chunk = view.duplicate();
+                    chunk.limit(chunk.position() + size);
+                    writeChunk(chunk, false);
+                    view.position(view.position() + size);
                 }
             }
-            return content.toString();
-        }
 
-        private byte[] readBinaryFileContents(File file) throws IOException {
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            try (FileInputStream fileInput = new FileInputStream(file)) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = fileInput.read(buffer)) != -1) {
-                    byteStream.write(buffer, 0, bytesRead);
-                }
+            @Override
+            public void flush() throws IOException {
+                writePending();
+                out.flush();
             }
-            return byteStream.toByteArray();
-        }
 
+            @Override
+            public void close() throws IOException {
+                writePending();
+                sendBuffers(out, ByteBuffer.wrap(LAST_CHUNK));
+                out.flush();
+                responseBytes = total;
+            }
 
+            private void writePending() throws IOException {
+                if (count > 0) {
+                    writeChunk(ByteBuffer.wrap(pending, 0, count), queued);
+                    count = 0;
+                }
+            }
 
-        private Map<String, String> parseParameters(String requestBody) {
-            Map<String, String> parameters = new HashMap<>();
-            String[] parameterPairs = requestBody.split("&");
-            for (String pair : parameterPairs) {
-                String[] keyValue = pair.split("=");
-                if (keyValue.length == 2) {
-                    String paramName = keyValue[0];
-                    try {
-                        String paramValue = URLDecoder.decode(keyValue[1], "UTF-8");
-                        parameters.put(paramName, paramValue);
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                        // Handle the exception or log an error message as needed
-                    }
+            private void writeChunk(ByteBuffer data, boolean copy) throws IOException {
+                int size = data.remaining();
+                byte[] sizeLine = (Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                if (copy) {
+                    out.write(sizeLine);
+                    out.write(data.array(), data.arrayOffset() + data.position(), size);
+                    out.write(CRLF);
+                } else {
+                    sendBuffers(out, ByteBuffer.wrap(sizeLine), data, ByteBuffer.wrap(CRLF));
                 }
+                total += size;
             }
-            return parameters;
         }
 
-        private void handlePostRequest(String resourcePath, Map<String, String> parameters, PrintWriter out) {
-            // Check if the POST request is from the form submission
-            if ("/params_info.html".equals(resourcePath)) {
-                // Generate the HTML page with parameter details
-                StringBuilder htmlResponse = new StringBuilder();
-                htmlResponse.append("<!DOCTYPE html>\n<html>\n<head>\n")
-                           .append("<title>Parameters Info</title>\n")
-                           .append("<style>")
-                           .append("body { font-family: Arial, sans-serif; margin: 0; padding: 0; background-color: #f4f4f4; color: #333; }\n")
-                           .append("h1 { color: #444; background-color: #ddd; padding: 10px; text-align: center; }\n")
-                           .append("ul { list-style: none; padding: 0; }\n")
-                           .append("li { background: #fff; padding: 10px; margin: 10px; border: 1px solid #ddd; }\n")
-                           .append("</style>\n")
-                           .append("</head>\n<body>\n<h1>Parameters Info</h1>\n");
-        
-                // Append parameters to the response
-                htmlResponse.append("<ul>\n");
-                for (Map.Entry<String, String> entry : parameters.entrySet()) {
-                    htmlResponse.append("<li><strong>").append(entry.getKey()).append(":</strong> ").append(entry.getValue()).append("</li>\n");
+        private void sendFileResponse(OutputStream out, int statusCode, String statusMessage, String contentType, String extraHeaders, Path file) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Sending File Response: Content-Type: " + contentType + ", Size: " + size + " bytes");
                 }
-                htmlResponse.append("</ul>\n");
-        
-                htmlResponse.append("</body>\n</html>");
-        
-                // Send the HTML content as the response
-                sendResponse(out, 200, "OK", "text/html", htmlResponse.toString());
-            } else {
-                // Handle other POST requests
-                StringBuilder htmlResponse = new StringBuilder();
-                htmlResponse.append("<!DOCTYPE html>\n<html>\n<head>\n")
-                            .append("<title>Post Request - Have a Nice Day :)</title>\n")
-                            .append("</head>\n<body>\n")
-                            .append("<h1>Post Request - Have a Nice Day :)</h1>\n");
-        
-                // Append parameters to the response for other POST requests
-                htmlResponse.append("<ul>\n");
-                for (Map.Entry<String, String> entry : parameters.entrySet()) {
-                    htmlResponse.append("<li><strong>").append(entry.getKey()).append(":</strong> ").append(entry.getValue()).append("</li>\n");
+                responseBytes = size;
+                String framingHeader = chunked ? "Transfer-Encoding: chunked" : "Content-Length: " + size;
+                String httpResponse = buildResponseHeaders(statusCode, statusMessage, contentType, extraHeaders + framingHeader);
+                logResponseHeaders(httpResponse);
+                out.write(httpResponse.getBytes());
+                if (chunked) {
+                    // The whole file goes out as a single chunk, so sendfile still moves it in one call
+                    if (size > 0) {
+                        out.write((Long.toHexString(size) + "\r\n").getBytes());
+                        sendFileBody(out, file, fileChannel, 0, size);
+                        out.write("\r\n".getBytes());
+                    }
+                    out.write("0\r\n\r\n".getBytes());
+                } else {
+                    sendFileBody(out, file, fileChannel, 0, size);
                 }
-                htmlResponse.append("</ul>\n");
-        
-                htmlResponse.append("</body>\n</html>");
-        
-                // Send the HTML content as the response
-                sendResponse(out, 200, "OK", "text/html", htmlResponse.toString());
+                out.flush();
             }
-        }        
+        }
 
-        private String sanitizeResourcePath(String resourcePath) {
-            // Remove occurrences of '/../' to prevent directory traversal
-            resourcePath = resourcePath.replaceAll("/\\.\\./", "/");
-            return resourcePath;
+        private void sendStaticResponse(OutputStream out, CachedResponse cached) throws IOException {
+            if (Log.isDebugEnabled()) {
+                Log.debug("Sending Static Response: Content-Type: " + cached.contentType + ", Encoding: " + cached.contentEncoding + ", Size: " + cached.body.capacity() + " bytes");
+            }
+            if (chunked && cached.contentEncoding == null) {
+                // Chunk framing is added per request around the shared off-heap body.
+                // Compressed variants keep Content-Length framing, the chunked writers only send identity bodies
+                try (ChunkedBodyStream body = startChunkedResponse(out, 200, "OK", cached.contentType, cached.entityHeaders)) {
+                    body.write(cached.body);
+                }
+                return;
+            }
+            // Headers and body leave in one gathering write, straight from the direct buffers
+            responseStatus = 200;
+            responseBytes = cached.body.capacity();
+            sendBuffers(out, keepAlive ? cached.keepAliveHeaders : cached.closeHeaders, cached.body);
         }
-        
-        private void handleHeadRequest(String resourcePath, PrintWriter out) {
-            // Implement handling of HEAD request here
-            // This method should behave similar to GET but without sending the actual content
-            // You should print request and response headers as per the requirement
-        
-            resourcePath = sanitizeResourcePath(resourcePath);
-        
-            if ("/".equals(resourcePath)) {
-                resourcePath = defaultPage;
+
+        private void sendBuffers(OutputStream out, ByteBuffer... buffers) throws IOException {
+            // Work on views so shared buffers keep their own position and limit
+            ByteBuffer[] views = new ByteBuffer[buffers.length];
+            for (int i = 0; i < buffers.length; i++) {
+                views[i] = buffers[i].duplicate();
+            }
+
+            if (out instanceof NioEngine.ResponseBuffer) {
+                for (ByteBuffer view : views) {
+                    ((NioEngine.ResponseBuffer) out).appendRegion(view);
+                }
+                return;
+            }
+
+            out.flush(); // Anything already buffered goes out first
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                long remaining = 0;
+                for (ByteBuffer view : views) {
+                    remaining += view.remaining();
+                }
+                writingSince = System.nanoTime();
+                try {
+                    while (remaining > 0) {
+                        remaining -= channel.write(views);
+                    }
+                } finally {
+                    writingSince = 0;
+                }
+            } else {
+                for (ByteBuffer view : views) {
+                    byte[] data = new byte[view.remaining()];
+                    view.get(data);
+                    out.write(data);
+                }
+                out.flush();
+            }
+        }
+
+        private void sendFileBody(OutputStream out, Path file, FileChannel fileChannel, long position, long count) throws IOException {
+            if (out instanceof NioEngine.ResponseBuffer) {
+                // The event loop sends the region with transferTo once the bytes before it are written
+                ((NioEngine.ResponseBuffer) out).appendFile(file, position, count);
+                return;
+            }
+
+            out.flush(); // Headers must reach the socket before the file bytes
+            // Socket channels let transferTo use sendfile; plain streams fall back to a small copy buffer
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            while (count > 0) {
+                // At most MAX_TRANSFER per call, so the watchdog sees a client that stops reading
+                writingSince = System.nanoTime();
+                long sent;
+                try {
+                    sent = fileChannel.transferTo(position, Math.min(count, MAX_TRANSFER), target);
+                } finally {
+                    writingSince = 0;
+                }
+                if (sent == 0 && position >= fileChannel.size()) {
+                    // Sizes come from the index, the file may have shrunk before the watcher noticed
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                position += sent;
+                count -= sent;
+            }
+        }
+
+        // Content types by file extension, looked up once per file when it is indexed
+        private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+        static {
+            CONTENT_TYPES.put("html", "text/html");
+            CONTENT_TYPES.put("htm", "text/html");
+            CONTENT_TYPES.put("txt", "text/plain");
+            CONTENT_TYPES.put("css", "text/css");
+            CONTENT_TYPES.put("js", "application/javascript");
+            CONTENT_TYPES.put("json", "application/json");
+            CONTENT_TYPES.put("xml", "application/xml");
+            CONTENT_TYPES.put("svg", "image/svg+xml");
+            CONTENT_TYPES.put("bmp", "image/bmp");
+            CONTENT_TYPES.put("gif", "image/gif");
+            CONTENT_TYPES.put("png", "image/png");
+            CONTENT_TYPES.put("jpg", "image/jpg");
+            CONTENT_TYPES.put("jpeg", "image/jpeg");
+            CONTENT_TYPES.put("ico", "image/x-icon");
+        }
+
+        static String getContentType(String filePath) {
+            int dot = filePath.lastIndexOf('.');
+            String contentType = dot != -1 ? CONTENT_TYPES.get(filePath.substring(dot + 1)) : null;
+            return contentType != null ? contentType : "application/octet-stream";
+        }
+
+        private void handleGetRequest(String resourcePath, HttpRequestParser request, OutputStream out, OutputStream binaryOut) throws IOException {
+            
+            if (responseCache != null && resourcePath.equals(config.cacheStatusPath)) {
+                sendResponse(out, 200, "OK", "text/plain", responseCache.describe());
+                return;
+            }
+            if (resourcePath.equals(config.metricsPath)) {
+                sendResponse(out, 200, "OK", "text/plain; version=0.0.4", Metrics.describe());
+                return;
+            }
+
+            long lookupStarted = System.nanoTime();
+            if (resourcePath.contains("?chunked:yes")) {
+                chunked = http11; // Only HTTP/1.1 clients understand chunked bodies
+            }
+            // One hash probe resolves the path; files that are not in the index are never looked for on disk
+            String key = FileIndex.normalize(resourcePath);
+            FileIndex.Entry entry = key != null ? fileIndex.get(key) : null;
+            responseStarted = System.nanoTime();
+            Metrics.lookup.record(responseStarted - lookupStarted);
+            if (key == null) {
+                sendResponse(out, 400, "Bad Request", "text/plain", "Invalid request path.");
+            } else if (entry != null) {
+                try {
+                    String contentType = entry.contentType;
+                    String range = request.header("range");
+                    // Byte ranges always refer to the file as stored, so range requests are not compressed
+                    String encoding = config.compression && range == null && isCompressible(contentType) ? chooseEncoding(request.header("accept-encoding")) : null;
+                    boolean precompressed = false;
+                    FileIndex.Entry served = entry; // The file actually read, the resource itself or its .gz sibling
+                    if ("gzip".equals(encoding) && entry.gzipKey != null) {
+                        // Serve a pre-compressed sibling (index.html.gz) when one exists next to the file
+                        FileIndex.Entry gzipEntry = fileIndex.get(entry.gzipKey);
+                        if (gzipEntry != null) {
+                            served = gzipEntry;
+                            precompressed = true;
+                        }
+                    }
+                    BasicFileAttributes attributes = served.attributes;
+
+                    boolean cached = responseCache != null && attributes.size() <= config.cacheMaxFileSize;
+                    boolean streamed = !cached && attributes.size() >= config.fileStreamThreshold;
+                    if (!precompressed && (streamed || attributes.size() < config.compressionMinSize)) {
+                        encoding = null; // Sent as stored on disk
+                    }
+
+                    // Strong validator for exactly this representation: the content hash of the file that
+                    // is read, suffixed with the encoding when the server compresses it itself
+                    String entityTag = "\"" + entityTags.get(served.path, attributes)
+                            + (encoding != null && !precompressed ? "-" + encoding : "") + "\"";
+                    long lastModified = attributes.lastModifiedTime().toMillis();
+                    if (isNotModified(request, entityTag, lastModified)) {
+                        sendNotModified(out, encodingHeaders(contentType, null) + cachingHeaders(entityTag, served, entry));
+                        return;
+                    }
+
+                    if (range != null && isRangeApplicable(request.header("if-range"), entityTag, lastModified)) {
+                        List<long[]> ranges = parseRanges(range, attributes.size());
+                        if (ranges != null) { // Malformed Range headers are ignored and the full file is sent
+                            sendRangeResponse(out, contentType, cachingHeaders(entityTag, served, entry), served.path, ranges);
+                            return;
+                        }
+                    }
+
+                    if (cached) {
+                        sendStaticResponse(out, responseCache.get(served.path, attributes, contentType, encoding, precompressed, entityTag));
+                    } else if (streamed) {
+                        // Large files are sent straight from the file and never loaded on the heap
+                        String extraHeaders = encodingHeaders(contentType, encoding) + cachingHeaders(entityTag, served, entry);
+                        sendFileResponse(out, 200, "OK", contentType, extraHeaders, served.path);
+                    } else { // Small files are read into memory and sent as-is, text included
+                        sendStaticResponse(out, CachedResponse.load(served.path, attributes, contentType, encoding, precompressed, entityTag, false));
+                    }
+                } catch (IOException e) {
+                    keepAlive = false; // Part of the response may already be on the wire
+                    sendResponse(out, 500, "Internal Server Error", "text/plain", "Internal server error.");
+                }
+            } else {
+                sendResponse(out, 404, "Not Found", "text/plain", "Resource not found.");
+            }
+        }
+
+        // If-None-Match takes precedence; If-Modified-Since is only consulted without it (RFC 7232, section 6)
+        private static boolean isNotModified(HttpRequestParser request, String entityTag, long lastModified) {
+            String ifNoneMatch = request.header("if-none-match");
+            if (ifNoneMatch != null) {
+                for (String candidate : ifNoneMatch.split(",")) {
+                    candidate = candidate.trim();
+                    if (candidate.startsWith("W/")) {
+                        candidate = candidate.substring(2); // Weak comparison is allowed here
+                    }
+                    if (candidate.equals("*") || candidate.equals(entityTag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            String ifModifiedSince = request.header("if-modified-since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                    return lastModified / 1000 <= since / 1000; // HTTP dates have one-second precision
+                } catch (DateTimeParseException ex) {
+                    return false; // Invalid dates are ignored
+                }
+            }
+            return false;
+        }
+
+        // An If-Range validator must still match, otherwise the whole file is sent instead of the ranges
+        private static boolean isRangeApplicable(String ifRange, String entityTag, long lastModified) {
+            if (ifRange == null) {
+                return true;
+            }
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                return ifRange.equals(entityTag); // Strong comparison, weak tags never match
+            }
+            try {
+                long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return lastModified / 1000 == date / 1000;
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+
+        // Parses "bytes=0-99,200-,-50" into inclusive [first, last] pairs clipped to the file size.
+        // Returns null for headers that should be ignored and an empty list when nothing is satisfiable
+        private static List<long[]> parseRanges(String range, long size) {
+            if (!range.startsWith("bytes=")) {
+                return null;
+            }
+            String[] specs = range.substring("bytes=".length()).split(",");
+            if (specs.length > MAX_RANGES) {
+                return null;
+            }
+            List<long[]> ranges = new ArrayList<>();
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1) {
+                    return null;
+                }
+                try {
+                    long first;
+                    long last;
+                    if (dash == 0) { // Suffix range: the last N bytes
+                        long suffix = Long.parseLong(spec.substring(1));
+                        if (suffix < 0) {
+                            return null;
+                        }
+                        first = Math.max(0, size - suffix);
+                        last = size - 1;
+                    } else {
+                        first = Long.parseLong(spec.substring(0, dash));
+                        String end = spec.substring(dash + 1);
+                        if (end.isEmpty()) {
+                            last = size - 1;
+                        } else {
+                            last = Long.parseLong(end);
+                            if (last < first) {
+                                return null; // "500-100" is invalid, not just unsatisfiable
+                            }
+                            last = Math.min(last, size - 1);
+                        }
+                    }
+                    if (first < 0) {
+                        return null;
+                    }
+                    if (first < size && first <= last) {
+                        ranges.add(new long[] { first, last });
+                    }
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+            }
+            return ranges;
+        }
+
+        private void sendRangeResponse(OutputStream out, String contentType, String extraHeaders, Path file, List<long[]> ranges) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                if (ranges.isEmpty()) {
+                    String responseText = "Requested range not satisfiable.";
+                    String httpResponse = buildResponseHeaders(416, "Range Not Satisfiable", "text/plain",
+                            "Content-Range: bytes */" + size + "\r\nContent-Length: " + responseText.length());
+                    responseBytes = responseText.length();
+                    logResponseHeaders(httpResponse);
+                    out.write(httpResponse.getBytes());
+                    out.write(responseText.getBytes());
+                    out.flush();
+                    return;
+                }
+
+                if (ranges.size() == 1) {
+                    long[] range = ranges.get(0);
+                    long length = range[1] - range[0] + 1;
+                    String httpResponse = buildResponseHeaders(206, "Partial Content", contentType, extraHeaders
+                            + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\nContent-Length: " + length);
+                    responseBytes = length;
+                    logResponseHeaders(httpResponse);
+                    out.write(httpResponse.getBytes());
+                    sendFileBody(out, file, fileChannel, range[0], length);
+                    out.flush();
+                    return;
+                }
+
+                // Several ranges go out as multipart/byteranges; part headers are built first so the
+                // total Content-Length is known before any file bytes are sent
+                String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(size);
+                String[] partHeaders = new String[ranges.size()];
+                long contentLength = 0;
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] range = ranges.get(i);
+                    partHeaders[i] = "\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                            + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n\r\n";
+                    contentLength += partHeaders[i].length() + range[1] - range[0] + 1;
+                }
+                String closingBoundary = "\r\n--" + boundary + "--\r\n";
+                contentLength += closingBoundary.length();
+
+                String httpResponse = buildResponseHeaders(206, "Partial Content", "multipart/byteranges; boundary=" + boundary,
+                        extraHeaders + "Content-Length: " + contentLength);
+                responseBytes = contentLength;
+                logResponseHeaders(httpResponse);
+                out.write(httpResponse.getBytes());
+                for (int i = 0; i < ranges.size(); i++) {
+                    long[] range = ranges.get(i);
+                    out.write(partHeaders[i].getBytes());
+                    sendFileBody(out, file, fileChannel, range[0], range[1] - range[0] + 1);
+                }
+                out.write(closingBoundary.getBytes());
+                out.flush();
+            }
+        }
+
+        // ETag, Last-Modified, Cache-Control and Accept-Ranges lines for a static response, each ending with CRLF
+        private static String cachingHeaders(String entityTag, long lastModified, String contentType) {
+            return "ETag: " + entityTag + "\r\n" + lastModifiedHeader(lastModified) + rangeAndCacheHeaders(contentType);
+        }
+
+        // The same lines from the index: Last-Modified of the file that is read, Cache-Control of the resource's type
+        private static String cachingHeaders(String entityTag, FileIndex.Entry served, FileIndex.Entry resource) {
+            return "ETag: " + entityTag + "\r\n" + served.lastModifiedHeader + resource.cacheHeaders;
+        }
+
+        static String lastModifiedHeader(long lastModified) {
+            return "Last-Modified: " + HTTP_DATE.format(Instant.ofEpochMilli(lastModified)) + "\r\n";
+        }
+
+        static String rangeAndCacheHeaders(String contentType) {
+            String headers = "Accept-Ranges: bytes\r\n";
+            Integer maxAge = config.maxAges.get(contentType);
+            if (maxAge == null) {
+                maxAge = config.maxAges.get(contentType.substring(0, contentType.indexOf('/')));
+            }
+            if (maxAge == null) {
+                maxAge = config.defaultMaxAge;
+            }
+            if (maxAge != null) {
+                headers += "Cache-Control: max-age=" + maxAge + "\r\n";
+            }
+            return headers;
+        }
+
+        private void sendNotModified(OutputStream out, String extraHeaders) throws IOException {
+            // A 304 carries the validators but no body and no Content-Length of its own
+            responseStatus = 304;
+            String httpResponse = "HTTP/1.1 304 Not Modified\r\n" + extraHeaders + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+            logResponseHeaders(httpResponse);
+            out.write(httpResponse.getBytes());
+            out.flush();
+        }
+
+        private static boolean isCompressible(String contentType) {
+            return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("/json")
+                    || contentType.endsWith("/xml") || contentType.endsWith("/javascript");
+        }
+
+        // Picks gzip or deflate from an Accept-Encoding header, or null when neither is acceptable
+        private static String chooseEncoding(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            float gzip = -1;
+            float deflate = -1;
+            float wildcard = -1;
+            for (String token : acceptEncoding.split(",")) {
+                String[] parts = token.split(";");
+                String coding = parts[0].trim().toLowerCase();
+                float quality = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Float.parseFloat(parameter.substring(2));
+                        } catch (NumberFormatException ex) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                    gzip = quality;
+                } else if (coding.equals("deflate")) {
+                    deflate = quality;
+                } else if (coding.equals("*")) {
+                    wildcard = quality;
+                }
+            }
+            if (gzip == -1) {
+                gzip = wildcard;
+            }
+            if (deflate == -1) {
+                deflate = wildcard;
+            }
+            if (gzip > 0 && gzip >= deflate) {
+                return "gzip";
+            }
+            return deflate > 0 ? "deflate" : null;
+        }
+
+        // Content-Encoding and Vary lines for a static response, each ending with CRLF
+        private static String encodingHeaders(String contentType, String contentEncoding) {
+            String headers = contentEncoding != null ? "Content-Encoding: " + contentEncoding + "\r\n" : "";
+            if (config.compression && isCompressible(contentType)) {
+                headers += "Vary: Accept-Encoding\r\n";
+            }
+            return headers;
+        }
+
+        private void handleReload(OutputStream out) throws IOException {
+            // The path is not a secret, so only local administrators may use it
+            if (remoteAddress == null || !remoteAddress.isLoopbackAddress()) {
+                sendResponse(out, 403, "Forbidden", "text/plain", "Reload is only accepted from localhost.");
+                return;
+            }
+            String report;
+            try {
+                report = reloadConfig();
+            } catch (IOException | RuntimeException ex) {
+                Log.error("Configuration reload failed", ex);
+                sendResponse(out, 500, "Internal Server Error", "text/plain", "Reload failed: " + ex.getMessage());
+                return;
+            }
+            sendResponse(out, 200, "OK", "text/plain", report);
+        }
+
+        private void handlePostRequest(String resourcePath, Map<String, String> parameters, List<RequestBody.UploadedFile> files, OutputStream out) throws IOException {
+            // Check if the POST request is from the form submission
+            if ("/params_info.html".equals(resourcePath)) {
+                // Generate the HTML page with parameter details, streamed to the client while it is written
+                try (Writer htmlResponse = new OutputStreamWriter(startGeneratedResponse(out, 200, "OK", "text/html"), StandardCharsets.UTF_8)) {
+                    htmlResponse.append("<!DOCTYPE html>\n<html>\n<head>\n")
+                               .append("<title>Parameters Info</title>\n")
+                               .append("<style>")
+                               .append("body { font-family: Arial, sans-serif; margin: 0; padding: 0; background-color: #f4f4f4; color: #333; }\n")
+                               .append("h1 { color: #444; background-color: #ddd; padding: 10px; text-align: center; }\n")
+                               .append("ul { list-style: none; padding: 0; }\n")
+                               .append("li { background: #fff; padding: 10px; margin: 10px; border: 1px solid #ddd; }\n")
+                               .append("</style>\n")
+                               .append("</head>\n<body>\n<h1>Parameters Info</h1>\n");
+            
+                    // Append parameters to the response
+                    htmlResponse.append("<ul>\n");
+                    for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                        htmlResponse.append("<li><strong>").append(entry.getKey()).append(":</strong> ").append(entry.getValue()).append("</li>\n");
+                    }
+                    for (RequestBody.UploadedFile file : files) {
+                        htmlResponse.append("<li><strong>").append(file.fieldName()).append(":</strong> ").append(file.fileName())
+                                .append(" (").append(file.contentType()).append(", ").append(String.valueOf(file.size())).append(" bytes)</li>\n");
+                    }
+                    htmlResponse.append("</ul>\n");
+            
+                    htmlResponse.append("</body>\n</html>");
+                }
             } else {
-                resourcePath = root + resourcePath;
+                // Handle other POST requests
+                try (Writer htmlResponse = new OutputStreamWriter(startGeneratedResponse(out, 200, "OK", "text/html"), StandardCharsets.UTF_8)) {
+                    htmlResponse.append("<!DOCTYPE html>\n<html>\n<head>\n")
+                                .append("<title>Post Request - Have a Nice Day :)</title>\n")
+                                .append("</head>\n<body>\n")
+                                .append("<h1>Post Request - Have a Nice Day :)</h1>\n");
+            
+                    // Append parameters to the response for other POST requests
+                    htmlResponse.append("<ul>\n");
+                    for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                        htmlResponse.append("<li><strong>").append(entry.getKey()).append(":</strong> ").append(entry.getValue()).append("</li>\n");
+                    }
+                    for (RequestBody.UploadedFile file : files) {
+                        htmlResponse.append("<li><strong>").append(file.fieldName()).append(":</strong> ").append(file.fileName())
+                                .append(" (").append(file.contentType()).append(", ").append(String.valueOf(file.size())).append(" bytes)</li>\n");
+                    }
+                    htmlResponse.append("</ul>\n");
+            
+                    htmlResponse.append("</body>\n</html>");
+                }
             }
+        }        
+
+        private void handleHeadRequest(String resourcePath, OutputStream out) throws IOException {
+            // Implement handling of HEAD request here
+            // This method should behave similar to GET but without sending the actual content
+            // You should print request and response headers as per the requirement
         
-            File resourceFile = new File(resourcePath);
-            if (resourceFile.exists() && resourceFile.isFile()) {
-                String contentType = getContentType(resourcePath);
-                long contentLength = resourceFile.length(); // New line to get content length
-                sendHeadResponse(out, 200, "OK", contentType, contentLength); // New line to send HEAD response
+            String key = FileIndex.normalize(resourcePath);
+            FileIndex.Entry entry = key != null ? fileIndex.get(key) : null;
+            if (entry != null) {
+                sendHeadResponse(out, 200, "OK", entry.contentType, entry.attributes.size()); // Size as last seen by the index
             } else {
                 sendResponse(out, 404, "Not Found", "text/plain", "Resource not found.");
             }
         }
                 
-        private void sendHeadResponse(PrintWriter out, int statusCode, String statusMessage, String contentType, long contentLength) {
-            out.println("HTTP/1.1 " + statusCode + " " + statusMessage);
-            out.println("Content-Type: " + contentType);
-            out.println("Content-Length: " + contentLength); // New line to include content length
-            out.println(); // New line to indicate end of headers
+        private void sendHeadResponse(OutputStream out, int statusCode, String statusMessage, String contentType, long contentLength) throws IOException {
+            String httpResponse = buildResponseHeaders(statusCode, statusMessage, contentType, "Content-Length: " + contentLength); // Same headers as GET, no body
+            out.write(httpResponse.getBytes());
             out.flush();
         }
         
-        private void handleTraceRequest(BufferedReader in, PrintWriter out) throws IOException {
+        private void handleTraceRequest(HttpRequestParser request, OutputStream out) throws IOException {
             // Implement handling of TRACE request here
             // This method should echo back the received request headers to the client
-            StringBuilder requestHeaders = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null && !line.isEmpty()) {
-                requestHeaders.append(line).append("\r\n");
-            }
+            String requestHeaders = request.rawHeaders();
         
             // Print received request headers
-            System.out.println("Received TRACE request headers:");
-            System.out.println(requestHeaders.toString());
+            Log.debug("Received TRACE request headers:\n" + requestHeaders);
         
             // Send back the received request headers to the client
             sendResponse(out, 200, "OK", "message/http", requestHeaders.toString());
@@ -426,4 +1565,2421 @@ public class Server {
 
         
     }
-}
\ No newline at end of file
+
+    // Keeps small static files as ready-to-send direct buffers, bounded by cacheSize bytes.
+    // Lookups are lock-free. When the budget is exceeded, entries are dropped in CLOCK order: keys wait
+    // in a ring in insertion order, and an entry that was hit since the hand last passed it is skipped once
+    private static class ResponseCache {
+        private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<String> clock = new ConcurrentLinkedQueue<>(); // Keys of entries, the head is next under the hand
+        private final long capacity;
+        private final AtomicLong size = new AtomicLong();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        public ResponseCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        // Returns the cached response for the file, reloading it when its size or mtime changed.
+        // Compressed variants are cached next to the identity one, so each is compressed only once
+        public CachedResponse get(Path path, BasicFileAttributes attributes, String contentType, String encoding, boolean precompressed, String entityTag) throws IOException {
+            String key = encoding == null || precompressed ? path.toString() : path + "|" + encoding;
+            CachedResponse entry = entries.get(key);
+            if (entry != null && entry.matches(attributes)) {
+                hits.increment();
+                if (!entry.referenced) {
+                    entry.referenced = true; // Written once per pass of the hand, hot entries are only read
+                }
+                return entry;
+            }
+
+            misses.increment();
+            CachedResponse loaded = CachedResponse.load(path, attributes, contentType, encoding, precompressed, entityTag, true);
+            if (loaded.weight > capacity) {
+                return loaded; // Would evict everything else, serve it uncached
+            }
+            CachedResponse previous = entries.put(key, loaded);
+            if (previous == null) {
+                clock.offer(key); // A reloaded entry keeps its place
+            }
+            size.addAndGet(previous == null ? loaded.weight : loaded.weight - previous.weight);
+            if (size.get() > capacity) {
+                evict();
+            }
+            return loaded;
+        }
+
+        private synchronized void evict() {
+            while (size.get() > capacity) {
+                String key = clock.poll();
+                if (key == null) {
+                    if (entries.isEmpty()) {
+                        return;
+                    }
+                    clock.addAll(entries.keySet()); // An insert raced with clear() and its key missed the ring
+                    continue;
+                }
+                CachedResponse candidate = entries.get(key);
+                if (candidate == null) {
+                    continue; // Removed by clear()
+                }
+                if (candidate.referenced) {
+                    candidate.referenced = false; // Second chance: evicted if not hit again before the hand comes back
+                    clock.offer(key);
+                } else if (entries.remove(key, candidate)) {
+                    size.addAndGet(-candidate.weight);
+                    evictions.increment();
+                } else {
+                    clock.offer(key); // Replaced by a reload meanwhile, the new entry keeps the key
+                }
+            }
+        }
+
+        // Drops every entry, e.g. after a reload changed the headers they were built with
+        public synchronized void clear() {
+            clock.clear();
+            for (Map.Entry<String, CachedResponse> entry : entries.entrySet()) {
+                if (entries.remove(entry.getKey(), entry.getValue())) {
+                    size.addAndGet(-entry.getValue().weight);
+                }
+            }
+        }
+
+        public String describe() {
+            return "hits=" + hits.sum() + "\nmisses=" + misses.sum() + "\nevictions=" + evictions.sum()
+                    + "\nentries=" + entries.size() + "\nbytes=" + size.get() + "\ncapacity=" + capacity + "\n";
+        }
+    }
+
+    static class CachedResponse {
+        private final long lastModified;
+        private final long fileSize;
+        private final String contentType;
+        private final String contentEncoding; // null for identity
+        private final String entityHeaders; // Encoding, validator and caching header lines, also sent with chunked framing
+        private final ByteBuffer body; // Off-heap when cached, socket writes use it without another copy
+        private final ByteBuffer keepAliveHeaders;
+        private final ByteBuffer closeHeaders;
+        private final long weight;
+        private volatile boolean referenced; // Hit since the eviction hand last passed it
+
+        public CachedResponse(byte[] body, BasicFileAttributes attributes, String contentType, String contentEncoding, String entityTag, boolean direct) {
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.fileSize = attributes.size();
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = toBuffer(body, direct);
+            this.entityHeaders = ClientHandler.encodingHeaders(contentType, contentEncoding) + ClientHandler.cachingHeaders(entityTag, lastModified, contentType);
+            String framingHeader = entityHeaders + "Content-Length: " + body.length;
+            this.keepAliveHeaders = toBuffer(ClientHandler.buildResponseHeaders(200, "OK", contentType, framingHeader, true).getBytes(), direct);
+            this.closeHeaders = toBuffer(ClientHandler.buildResponseHeaders(200, "OK", contentType, framingHeader, false).getBytes(), direct);
+            this.weight = (long) body.length + keepAliveHeaders.capacity() + closeHeaders.capacity();
+        }
+
+        // Reads the file and encodes it, unless it is a pre-compressed file or encoding is null
+        public static CachedResponse load(Path path, BasicFileAttributes attributes, String contentType, String encoding, boolean precompressed, String entityTag, boolean direct) throws IOException {
+            byte[] data = Files.readAllBytes(path);
+            if (encoding != null && !precompressed) {
+                data = compress(data, encoding);
+            }
+            return new CachedResponse(data, attributes, contentType, encoding, entityTag, direct);
+        }
+
+        private static byte[] compress(byte[] data, String encoding) throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+            try (OutputStream encoder = "gzip".equals(encoding) ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+                encoder.write(data);
+            }
+            return compressed.toByteArray();
+        }
+
+        public boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == fileSize && attributes.lastModifiedTime().toMillis() == lastModified;
+        }
+
+        private static ByteBuffer toBuffer(byte[] data, boolean direct) {
+            if (!direct) {
+                return ByteBuffer.wrap(data);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data).flip();
+            return buffer;
+        }
+    }
+
+    // Strong ETags are content hashes, computed once per file version (size and mtime). Hashing a file
+    // that is streamed would hold the request thread, or a whole nio event loop, for as long as reading
+    // it takes, so those files are tagged with their size and mtime instead
+    private static class EntityTagCache {
+        private final ConcurrentHashMap<Path, EntityTag> tags = new ConcurrentHashMap<>();
+
+        public String get(Path path, BasicFileAttributes attributes) throws IOException {
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() >= config.fileStreamThreshold) {
+                return Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified);
+            }
+            EntityTag tag = tags.get(path);
+            if (tag != null && tag.size == attributes.size() && tag.lastModified == lastModified) {
+                return tag.value;
+            }
+            String value = hash(path);
+            tags.put(path, new EntityTag(attributes.size(), lastModified, value));
+            return value;
+        }
+
+        private static String hash(Path path) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex); // Every JVM is required to provide SHA-256
+            }
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
+                while (fileChannel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            StringBuilder hex = new StringBuilder();
+            byte[] hashed = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((hashed[i] >> 4) & 0xf, 16)).append(Character.forDigit(hashed[i] & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        private static class EntityTag {
+            private final long size;
+            private final long lastModified;
+            private final String value;
+
+            public EntityTag(long size, long lastModified, String value) {
+                this.size = size;
+                this.lastModified = lastModified;
+                this.value = value;
+            }
+        }
+    }
+
+    // Index of the files under root, built by one scan at startup and kept current by a WatchService
+    // thread. A request path is normalized and resolved with a single hash probe, so serving a file
+    // needs no stat before it is opened and paths that are not indexed get a 404 without any disk
+    // access. Entries hold what the response headers need, computed once each time the file changes
+    static class FileIndex {
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        private final Map<Path, WatchKey> directories = new HashMap<>(); // Watched directories, owned by the watcher thread once started
+        private final Path root;
+        private final Path realRoot; // Symbolic links are only followed while they stay inside this
+        private final Path defaultPage; // Served for "/", like before it may live outside root
+        private WatchService watcher;
+
+        static class Entry {
+            final Path path; // Real path of the file
+            final BasicFileAttributes attributes;
+            final String contentType;
+            final String gzipKey; // Where a pre-compressed sibling would be indexed, null outside root
+            final String lastModifiedHeader; // "Last-Modified: ...\r\n"
+            final String cacheHeaders; // Accept-Ranges and Cache-Control lines for contentType
+
+            Entry(Path path, BasicFileAttributes attributes, String contentType, String gzipKey) {
+                this.path = path;
+                this.attributes = attributes;
+                this.contentType = contentType;
+                this.gzipKey = gzipKey;
+                this.lastModifiedHeader = ClientHandler.lastModifiedHeader(attributes.lastModifiedTime().toMillis());
+                this.cacheHeaders = ClientHandler.rangeAndCacheHeaders(contentType);
+            }
+        }
+
+        public FileIndex(Path root, Path defaultPage) throws IOException {
+            this.root = root.toAbsolutePath().normalize();
+            this.realRoot = Files.exists(this.root) ? this.root.toRealPath() : this.root;
+            this.defaultPage = defaultPage.toAbsolutePath().normalize();
+        }
+
+        public void start() throws IOException {
+            watcher = FileSystems.getDefault().newWatchService();
+            if (!Files.isDirectory(root)) {
+                Log.info("Document root " + root + " is not a directory, only the default page is served");
+            }
+            scan(root, entries);
+            watch(defaultPage.getParent());
+            update(defaultPage, entries);
+            Thread thread = new Thread(this::watchLoop, "file-index");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void stop() {
+            try {
+                watcher.close(); // Ends the watcher thread
+            } catch (IOException ex) {
+                Log.error("Could not close the file watcher", ex);
+            }
+        }
+
+        public Entry get(String key) {
+            return entries.get(key);
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        // Decodes and normalizes a request target ("/docs/./a%20b.html?x=1") to an index key ("/docs/a b.html").
+        // Dot segments are resolved after percent-decoding, so encoded traversal such as /%2e%2e/ or
+        // ..%2f cannot climb out of root. Returns null for targets that cannot name a file at all
+        static String normalize(String target) {
+            int end = target.length();
+            for (int i = 0; i < end; i++) {
+                char c = target.charAt(i);
+                if (c == '?' || c == '#') {
+                    end = i;
+                }
+            }
+            if (end == 0 || target.charAt(0) != '/') {
+                return null;
+            }
+            String path = end == target.length() ? target : target.substring(0, end);
+            if (path.indexOf('%') == -1 && path.indexOf("/.") == -1 && path.indexOf("//") == -1) {
+                return path; // Already canonical, the common case
+            }
+
+            byte[] decoded = new byte[end];
+            int length = 0;
+            for (int i = 0; i < end; i++) {
+                char c = path.charAt(i);
+                if (c == '%') {
+                    int high = i + 2 < end ? Character.digit(path.charAt(i + 1), 16) : -1;
+                    int low = i + 2 < end ? Character.digit(path.charAt(i + 2), 16) : -1;
+                    if (high < 0 || low < 0) {
+                        return null; // Truncated or invalid escape
+                    }
+                    decoded[length++] = (byte) (high << 4 | low);
+                    i += 2;
+                } else if (c <= 0xff) {
+                    decoded[length++] = (byte) c;
+                } else {
+                    return null;
+                }
+            }
+            path = new String(decoded, 0, length, StandardCharsets.UTF_8);
+            if (path.indexOf('\0') != -1) {
+                return null;
+            }
+
+            List<String> segments = new ArrayList<>();
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty() || segment.equals(".")) {
+                    continue;
+                }
+                if (segment.equals("..")) {
+                    if (segments.isEmpty()) {
+                        return null; // Above root
+                    }
+                    segments.remove(segments.size() - 1);
+                } else {
+                    segments.add(segment);
+                }
+            }
+            StringBuilder key = new StringBuilder(path.length());
+            for (String segment : segments) {
+                key.append('/').append(segment);
+            }
+            if (key.length() == 0 || path.endsWith("/")) {
+                key.append('/'); // "/dir/" stays a directory name and misses, as it did on disk
+            }
+            return key.toString();
+        }
+
+        // Index key of a file below root, or null for paths outside it
+        private String keyOf(Path file) {
+            if (!file.startsWith(root) || file.equals(root)) {
+                return null;
+            }
+            return "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+        }
+
+        private void watch(Path directory) {
+            if (directory == null || directories.containsKey(directory)) {
+                return;
+            }
+            try {
+                directories.put(directory, directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException ex) {
+                Log.info("Cannot watch " + directory + ", changes to it will not be seen: " + ex.getMessage());
+            }
+        }
+
+        // Indexes every file below start and watches every directory on the way
+        private void scan(Path start, Map<String, Entry> into) {
+            if (!Files.isDirectory(start)) {
+                return;
+            }
+            try {
+                Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+                        if (!directory.toRealPath().startsWith(realRoot)) {
+                            return FileVisitResult.SKIP_SUBTREE; // A link out of root
+                        }
+                        watch(directory); // Before listing it, so files created meanwhile still raise an event
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        update(file, into);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                        return FileVisitResult.CONTINUE; // Unreadable, already gone or a link loop
+                    }
+                });
+            } catch (IOException ex) {
+                Log.error("Could not index " + start, ex);
+            }
+        }
+
+        // Reads one file again and adds, replaces or drops its entries
+        private void update(Path file, Map<String, Entry> into) {
+            String key = keyOf(file);
+            boolean isDefaultPage = file.equals(defaultPage);
+            if (key == null && !isDefaultPage) {
+                return;
+            }
+            Entry entry = null;
+            try {
+                Path real = file.toRealPath();
+                BasicFileAttributes attributes = Files.readAttributes(real, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && (real.startsWith(realRoot) || isDefaultPage)) {
+                    entry = new Entry(real, attributes, ClientHandler.getContentType(file.getFileName().toString()), key != null ? key + ".gz" : null);
+                }
+            } catch (IOException ex) {
+                // Gone again or unreadable: not served
+            }
+            for (String mapped : isDefaultPage && key != null ? new String[] { key, "/" } : new String[] { key != null ? key : "/" }) {
+                if (entry != null) {
+                    into.put(mapped, entry);
+                } else {
+                    into.remove(mapped);
+                }
+            }
+        }
+
+        // Drops a deleted file, or everything below a deleted directory, and stops watching there
+        private void remove(Path path) {
+            String key = keyOf(path);
+            if (key != null) {
+                entries.remove(key);
+                String prefix = key + "/";
+                entries.keySet().removeIf(indexed -> indexed.startsWith(prefix));
+            }
+            if (defaultPage.startsWith(path)) {
+                entries.remove("/");
+            }
+            Iterator<Map.Entry<Path, WatchKey>> watched = directories.entrySet().iterator();
+            while (watched.hasNext()) {
+                Map.Entry<Path, WatchKey> directory = watched.next();
+                if (directory.getKey().startsWith(path)) {
+                    directory.getValue().cancel(); // A moved directory keeps its watch, its events would land under the old name
+                    watched.remove();
+                }
+            }
+        }
+
+        // Events were lost: index everything again and swap the result in without a window of misses
+        private void rescan() {
+            Map<String, Entry> fresh = new HashMap<>();
+            scan(root, fresh);
+            update(defaultPage, fresh);
+            entries.putAll(fresh);
+            entries.keySet().retainAll(fresh.keySet());
+            Log.info("File index rebuilt after lost events, " + fresh.size() + " files");
+        }
+
+        private void watchLoop() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    return;
+                }
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                        continue;
+                    }
+                    Path child = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        remove(child);
+                    } else if (Files.isDirectory(child)) {
+                        if (keyOf(child) != null) {
+                            scan(child, entries); // New or moved-in directory
+                        }
+                    } else {
+                        update(child, entries);
+                    }
+                }
+                if (!key.reset()) {
+                    directories.values().remove(key); // The directory itself is gone
+                }
+            }
+        }
+    }
+
+    // Byte-level HTTP/1.x request head parser. It works in place on the connection's buffer and
+    // records only offsets (a flyweight header table), so no Strings are created while parsing;
+    // callers decode just the values they ask for. One instance is reused for every request
+    static class HttpRequestParser {
+        public static final int NEED_MORE = 0;
+        public static final int COMPLETE = 1;
+        public static final int ERROR = 2;
+
+        private static final int SKIP_EMPTY_LINES = 0;
+        private static final int METHOD = 1;
+        private static final int TARGET = 2;
+        private static final int VERSION = 3;
+        private static final int REQUEST_LINE_LF = 4;
+        private static final int HEADER_START = 5;
+        private static final int HEADER_NAME = 6;
+        private static final int HEADER_VALUE_START = 7;
+        private static final int HEADER_VALUE = 8;
+        private static final int HEADER_LF = 9;
+        private static final int FINAL_LF = 10;
+
+        private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+
+        private final int[] nameStart;
+        private final int[] nameEnd;
+        private final int[] valueStart;
+        private final int[] valueEnd;
+        private byte[] data;
+        private int headerCount;
+        private int methodStart, methodEnd, targetStart, targetEnd, versionStart, versionEnd;
+        private int headersStart;
+        private int headerEnd; // Index just past the blank line once COMPLETE
+        private int state;
+        private int index;
+        private int errorStatus;
+        private String errorStatusMessage;
+        private String errorText;
+
+        public HttpRequestParser() {
+            nameStart = new int[config.maxHeaderCount];
+            nameEnd = new int[config.maxHeaderCount];
+            valueStart = new int[config.maxHeaderCount];
+            valueEnd = new int[config.maxHeaderCount];
+        }
+
+        // Prepares for a new request that starts at offset 0 of the buffer
+        public void reset() {
+            state = SKIP_EMPTY_LINES;
+            index = 0;
+            headerCount = 0;
+            data = null;
+        }
+
+        // Continues parsing data[0, limit); bytes seen by earlier calls are not scanned again
+        @SuppressWarnings("fallthrough") // HEADER_VALUE_START continues into HEADER_VALUE on purpose
+        public int parse(byte[] data, int limit) {
+            this.data = data;
+            for (; index < limit; index++) {
+                byte b = data[index];
+                switch (state) {
+                    case SKIP_EMPTY_LINES: // Tolerate stray empty lines between pipelined requests (RFC 7230, section 3.5)
+                        if (b != '\r' && b != '\n') {
+                            methodStart = index;
+                            state = METHOD;
+                        }
+                        break;
+                    case METHOD:
+                        if (b == ' ') {
+                            methodEnd = index;
+                            targetStart = index + 1;
+                            state = TARGET;
+                        } else if (b == '\r' || b == '\n') {
+                            return fail(400, "Bad Request", "Malformed request.");
+                        }
+                        break;
+                    case TARGET:
+                        if (b == ' ') {
+                            targetEnd = index;
+                            versionStart = index + 1;
+                            state = VERSION;
+                        } else if (b == '\r' || b == '\n') {
+                            return fail(400, "Bad Request", "Malformed request.");
+                        }
+                        break;
+                    case VERSION:
+                        if (b == '\r' || b == '\n') {
+                            versionEnd = index;
+                            if (methodEnd == methodStart || targetEnd == targetStart || versionEnd == versionStart) {
+                                return fail(400, "Bad Request", "Malformed request.");
+                            }
+                            headersStart = b == '\n' ? index + 1 : index + 2;
+                            state = b == '\r' ? REQUEST_LINE_LF : HEADER_START;
+                        } else if (b == ' ') {
+                            return fail(400, "Bad Request", "Malformed request.");
+                        }
+                        break;
+                    case REQUEST_LINE_LF:
+                    case HEADER_LF:
+                        if (b != '\n') {
+                            return fail(400, "Bad Request", "Malformed request.");
+                        }
+                        state = HEADER_START;
+                        break;
+                    case HEADER_START:
+                        if (b == '\r') {
+                            state = FINAL_LF;
+                        } else if (b == '\n') {
+                            headerEnd = index + 1;
+                            return COMPLETE;
+                        } else if (headerCount == nameStart.length) {
+                            return fail(431, "Request Header Fields Too Large", "Too many request headers.");
+                        } else {
+                            nameStart[headerCount] = index;
+                            state = HEADER_NAME;
+                        }
+                        break;
+                    case HEADER_NAME:
+                        if (b == ':') {
+                            nameEnd[headerCount] = index;
+                            state = HEADER_VALUE_START;
+                        } else if (b == '\r' || b == '\n') {
+                            return fail(400, "Bad Request", "Malformed header.");
+                        }
+                        break;
+                    case HEADER_VALUE_START:
+                        if (b == ' ' || b == '\t') {
+                            break;
+                        }
+                        valueStart[headerCount] = index;
+                        state = HEADER_VALUE;
+                        // Fall through: the first value byte may already end the line
+                    case HEADER_VALUE:
+                        if (b == '\r' || b == '\n') {
+                            int end = index;
+                            while (end > valueStart[headerCount] && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+                                end--;
+                            }
+                            valueEnd[headerCount] = end;
+                            headerCount++;
+                            state = b == '\r' ? HEADER_LF : HEADER_START;
+                        }
+                        break;
+                    case FINAL_LF:
+                        if (b != '\n') {
+                            return fail(400, "Bad Request", "Malformed request.");
+                        }
+                        headerEnd = index + 1;
+                        return COMPLETE;
+                    default:
+                        throw new IllegalStateException("Unknown parser state " + state);
+                }
+            }
+            if (limit >= config.maxHeaderSize || limit == data.length) {
+                // The whole buffer holds an unfinished request head; a buffer taken before a reload may be smaller
+                return state <= VERSION
+                        ? fail(414, "URI Too Long", "Request line too long.")
+                        : fail(431, "Request Header Fields Too Large", "Request headers too large.");
+            }
+            return NEED_MORE;
+        }
+
+        private int fail(int status, String statusMessage, String text) {
+            errorStatus = status;
+            errorStatusMessage = statusMessage;
+            errorText = text;
+            return ERROR;
+        }
+
+        public int errorStatus() {
+            return errorStatus;
+        }
+
+        public String errorStatusMessage() {
+            return errorStatusMessage;
+        }
+
+        public String errorText() {
+            return errorText;
+        }
+
+        // True once some bytes of a request have arrived
+        public boolean hasStarted() {
+            return state != SKIP_EMPTY_LINES;
+        }
+
+        public int headerEnd() {
+            return headerEnd;
+        }
+
+        // Common methods map to constants so dispatch needs no allocation
+        public String method() {
+            if (matches(methodStart, methodEnd, "GET")) {
+                return "GET";
+            } else if (matches(methodStart, methodEnd, "POST")) {
+                return "POST";
+            } else if (matches(methodStart, methodEnd, "HEAD")) {
+                return "HEAD";
+            }
+            return new String(data, methodStart, methodEnd - methodStart, StandardCharsets.US_ASCII);
+        }
+
+        public String target() {
+            return new String(data, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+        }
+
+        public String requestLine() {
+            return new String(data, methodStart, versionEnd - methodStart, StandardCharsets.ISO_8859_1);
+        }
+
+        // The raw header lines, e.g. for echoing a TRACE request
+        public String rawHeaders() {
+            return new String(data, headersStart, Math.max(0, headerEnd - headersStart), StandardCharsets.ISO_8859_1);
+        }
+
+        // Value of the first header with this name (given in lower case), or null
+        public String header(String lowerCaseName) {
+            int i = find(lowerCaseName);
+            return i == -1 ? null : new String(data, valueStart[i], valueEnd[i] - valueStart[i], StandardCharsets.ISO_8859_1);
+        }
+
+        public boolean hasHeader(String lowerCaseName) {
+            return find(lowerCaseName) != -1;
+        }
+
+        // Content-Length as a number without decoding it to a String: 0 when absent, -1 when invalid. Repeated
+        // headers must agree, otherwise where the body ends would depend on which one a reader believes
+        public long contentLength() {
+            long length = 0;
+            boolean found = false;
+            for (int i = 0; i < headerCount; i++) {
+                if (!matchesIgnoreCase(nameStart[i], nameEnd[i], "content-length")) {
+                    continue;
+                }
+                long value = parseDigits(valueStart[i], valueEnd[i]);
+                if (value < 0 || found && value != length) {
+                    return -1;
+                }
+                length = value;
+                found = true;
+            }
+            return length;
+        }
+
+        private long parseDigits(int start, int end) {
+            if (end == start || end - start > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int j = start; j < end; j++) {
+                byte b = data[j];
+                if (b < '0' || b > '9') {
+                    return -1;
+                }
+                value = value * 10 + (b - '0');
+            }
+            return value;
+        }
+
+        public boolean isHttp11() {
+            return versionEnd - versionStart == HTTP_1_1.length && Arrays.equals(data, versionStart, versionEnd, HTTP_1_1, 0, HTTP_1_1.length);
+        }
+
+        // HTTP/1.1 connections are persistent by default, HTTP/1.0 ones only when asked for
+        public boolean isKeepAlive() {
+            if (hasHeader("transfer-encoding") && hasHeader("content-length")) {
+                return false; // Framed by Transfer-Encoding, but a sign of request smuggling (RFC 7230 3.3.3)
+            }
+            int i = find("connection");
+            if (i != -1) {
+                if (matchesIgnoreCase(valueStart[i], valueEnd[i], "close")) {
+                    return false;
+                }
+                if (matchesIgnoreCase(valueStart[i], valueEnd[i], "keep-alive")) {
+                    return true;
+                }
+            }
+            return isHttp11();
+        }
+
+        private int find(String lowerCaseName) {
+            for (int i = 0; i < headerCount; i++) {
+                if (matchesIgnoreCase(nameStart[i], nameEnd[i], lowerCaseName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(int start, int end, String expected) {
+            if (end - start != expected.length()) {
+                return false;
+            }
+            for (int i = 0; i < expected.length(); i++) {
+                if (data[start + i] != expected.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchesIgnoreCase(int start, int end, String lowerCaseExpected) {
+            if (end - start != lowerCaseExpected.length()) {
+                return false;
+            }
+            for (int i = 0; i < lowerCaseExpected.length(); i++) {
+                int b = data[start + i];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != lowerCaseExpected.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Recycles the heap buffers connections parse requests in, so a request costs no buffer allocation
+    private static class BufferPool {
+        private static final int MAX_POOLED = 1024;
+        private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger pooled = new AtomicInteger();
+
+        public static ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocate(config.maxHeaderSize);
+            }
+            pooled.decrementAndGet();
+            if (buffer.capacity() != config.maxHeaderSize) {
+                return ByteBuffer.allocate(config.maxHeaderSize); // Pooled before a reload changed maxHeaderSize
+            }
+            return buffer;
+        }
+
+        // Moves the first length bytes into a buffer of the current size and releases the old one
+        public static ByteBuffer grow(ByteBuffer buffer, int length) {
+            ByteBuffer larger = acquire();
+            larger.put(buffer.array(), 0, length);
+            release(buffer);
+            return larger;
+        }
+
+        public static void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (buffer.capacity() != config.maxHeaderSize) {
+                return; // Left to the garbage collector, the pool only holds buffers of the current size
+            }
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                buffers.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    // Asynchronous logging: request threads claim a slot in a fixed ring of preallocated records and
+    // fill in plain fields (no formatting, no locks); a background writer formats and batch-writes
+    // them to logFile, rotating it at logMaxBytes. When the ring is full records are dropped and counted
+    private static class Log {
+        public static final int ERROR = 0;
+        public static final int INFO = 1;
+        public static final int DEBUG = 2;
+
+        private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ISO_INSTANT;
+
+        private static int level = INFO;
+        private static Record[] ring;
+        private static AtomicLongArray published; // Sequence number stored in each slot once its record is complete
+        private static int mask;
+        private static final AtomicLong tail = new AtomicLong(); // Next sequence to claim
+        private static volatile long head = 0; // Next sequence the writer will read
+        private static final LongAdder dropped = new LongAdder();
+        private static String file;
+        private static long maxBytes;
+        private static int maxFiles;
+        private static Writer writer;
+        private static long written;
+
+        private static class Record {
+            private int level;
+            private long time;
+            private InetAddress remoteAddress;
+            private String method;
+            private String target;
+            private int status;
+            private long bytes;
+            private long nanos;
+            private String message; // null for access records
+            private Throwable error;
+        }
+
+        public static void start(String logFile, long logMaxBytes, int logMaxFiles, int capacity, String logLevel) throws IOException {
+            level = "debug".equalsIgnoreCase(logLevel) ? DEBUG : "error".equalsIgnoreCase(logLevel) ? ERROR : INFO;
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1; // Round up to a power of two
+            ring = new Record[size];
+            published = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                ring[i] = new Record();
+                published.set(i, -1);
+            }
+            mask = size - 1;
+            file = logFile;
+            maxBytes = logMaxBytes;
+            maxFiles = logMaxFiles;
+            openWriter();
+
+            Thread writerThread = new Thread(Log::writeLoop, "log-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        // Writes out everything queued so far; the shutdown hook calls it last so no record is lost on exit
+        public static void flush() {
+            if (ring != null) {
+                drain();
+            }
+        }
+
+        public static boolean isDebugEnabled() {
+            return level >= DEBUG;
+        }
+
+        public static void access(InetAddress remoteAddress, String method, String target, int status, long bytes, long nanos) {
+            if (level < INFO) {
+                return;
+            }
+            long sequence = claim();
+            if (sequence == -1) {
+                return;
+            }
+            Record record = fill(sequence, INFO, null, null);
+            record.remoteAddress = remoteAddress;
+            record.method = method;
+            record.target = target;
+            record.status = status;
+            record.bytes = bytes;
+            record.nanos = nanos;
+            published.lazySet((int) (sequence & mask), sequence); // Hands the record to the writer
+        }
+
+        public static void debug(String message) {
+            if (level >= DEBUG) {
+                message(DEBUG, message, null);
+            }
+        }
+
+        public static void info(String message) {
+            if (level >= INFO) {
+                message(INFO, message, null);
+            }
+        }
+
+        public static void error(String message, Throwable error) {
+            message(ERROR, message, error);
+        }
+
+        private static void message(int messageLevel, String message, Throwable error) {
+            if (ring == null) { // Not started yet, e.g. while the configuration is loaded
+                System.out.println(message);
+                return;
+            }
+            long sequence = claim();
+            if (sequence != -1) {
+                fill(sequence, messageLevel, message, error);
+                published.lazySet((int) (sequence & mask), sequence);
+            }
+        }
+
+        // Reserves the next slot, or returns -1 (and counts a drop) when the writer has fallen a full ring behind
+        private static long claim() {
+            while (true) {
+                long sequence = tail.get();
+                if (sequence - head >= ring.length) {
+                    dropped.increment();
+                    return -1;
+                }
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    return sequence;
+                }
+            }
+        }
+
+        private static Record fill(long sequence, int recordLevel, String message, Throwable error) {
+            Record record = ring[(int) (sequence & mask)];
+            record.level = recordLevel;
+            record.time = System.currentTimeMillis();
+            record.message = message;
+            record.error = error;
+            return record;
+        }
+
+        private static void writeLoop() {
+            while (true) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(10_000_000L); // Nothing to write, check again in 10 ms
+                }
+            }
+        }
+
+        // Writes every published record as one batch; returns how many were written
+        private static synchronized int drain() {
+            int count = 0;
+            try {
+                long sequence = head;
+                while (published.get((int) (sequence & mask)) == sequence) {
+                    Record record = ring[(int) (sequence & mask)];
+                    String line = format(record);
+                    record.remoteAddress = null; // Let the slot drop its references until it is reused
+                    record.message = null;
+                    record.error = null;
+                    head = ++sequence; // Frees the slot for producers
+                    writer.write(line);
+                    written += line.length();
+                    count++;
+                }
+                long lost = dropped.sumThenReset();
+                if (lost > 0) {
+                    String line = TIMESTAMP.format(Instant.now()) + " ERROR " + lost + " log records dropped, the log buffer was full\n";
+                    writer.write(line);
+                    written += line.length();
+                }
+                if (count > 0 || lost > 0) {
+                    writer.flush();
+                    if (maxBytes > 0 && written >= maxBytes && !file.isEmpty()) {
+                        rotate();
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(); // The log itself is broken, stderr is all that is left
+            }
+            return count;
+        }
+
+        private static String format(Record record) {
+            StringBuilder line = new StringBuilder(128).append(TIMESTAMP.format(Instant.ofEpochMilli(record.time)));
+            if (record.message == null) {
+                // 2026-10-16T23:44:49.123Z INFO 127.0.0.1 "GET /index.html" 200 3531 0.412ms
+                line.append(" INFO ").append(record.remoteAddress == null ? "-" : record.remoteAddress.getHostAddress())
+                    .append(" \"").append(record.method).append(' ').append(record.target).append("\" ")
+                    .append(record.status).append(' ').append(record.bytes).append(' ')
+                    .append(String.format(Locale.US, "%.3fms", record.nanos / 1_000_000.0)).append('\n');
+                return line.toString();
+            }
+            line.append(record.level == ERROR ? " ERROR " : record.level == DEBUG ? " DEBUG " : " INFO ").append(record.message).append('\n');
+            if (record.error != null) {
+                StringWriter trace = new StringWriter();
+                record.error.printStackTrace(new PrintWriter(trace));
+                line.append(trace);
+            }
+            return line.toString();
+        }
+
+        private static void openWriter() throws IOException {
+            if (file.isEmpty()) {
+                writer = new BufferedWriter(new OutputStreamWriter(System.out), 65536);
+                return;
+            }
+            File logFile = new File(file);
+            written = logFile.length();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true)), 65536);
+        }
+
+        // server.log -> server.log.1 -> ... -> server.log.<logMaxFiles>, the oldest one is deleted
+        private static void rotate() throws IOException {
+            writer.close();
+            if (maxFiles > 0) {
+                new File(file + "." + maxFiles).delete();
+                for (int i = maxFiles - 1; i >= 1; i--) {
+                    new File(file + "." + i).renameTo(new File(file + "." + (i + 1)));
+                }
+                new File(file).renameTo(new File(file + ".1"));
+            } else {
+                new File(file).delete();
+            }
+            openWriter();
+        }
+    }
+
+    // Request body, fed with bytes as either engine reads them. It strips the Content-Length or chunked
+    // framing and hands the payload to a parser for its content type, so memory stays bounded however
+    // large the body is: form fields are limited to maxFormSize, uploaded files grow past
+    // uploadMemoryThreshold in temporary files, and the whole body is limited to maxBodySize
+    static class RequestBody implements Closeable {
+        private static final RequestBody EMPTY = new RequestBody(0, false);
+        private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        private static final int CHUNK_SIZE = 0;
+        private static final int CHUNK_EXTENSION = 1;
+        private static final int CHUNK_SIZE_LF = 2;
+        private static final int CHUNK_DATA = 3;
+        private static final int CHUNK_DATA_CR = 4;
+        private static final int CHUNK_DATA_LF = 5;
+        private static final int TRAILER_START = 6;
+        private static final int TRAILER_LINE = 7;
+        private static final int FINAL_LF = 8;
+
+        private final boolean chunked;
+        private long remaining; // Content-Length bytes still to come
+        private long received = 0; // Payload bytes so far
+        private int chunkState = CHUNK_SIZE;
+        private long chunkRemaining;
+        private int chunkDigits;
+        private BodyParser parser; // null: the payload is read and dropped
+        private boolean expectsContinue;
+        private boolean complete;
+        private int errorStatus = 0;
+        private String errorStatusMessage;
+        private String errorText;
+        private final Map<String, String> parameters;
+        private final List<UploadedFile> files;
+
+        private RequestBody(long length, boolean chunked) {
+            this.remaining = length;
+            this.chunked = chunked;
+            this.complete = length == 0 && !chunked;
+            boolean empty = complete;
+            this.parameters = empty ? Collections.emptyMap() : new LinkedHashMap<>();
+            this.files = empty ? Collections.emptyList() : new ArrayList<>();
+        }
+
+        // Sets up the body announced by the request head. Problems with the head itself are reported
+        // through errorStatus() before any body byte is read
+        public static RequestBody open(HttpRequestParser request) {
+            String transferEncoding = request.header("transfer-encoding");
+            long length = 0;
+            if (transferEncoding != null) {
+                if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                    return failed(501, "Not Implemented", "Transfer-Encoding not supported.");
+                }
+            } else {
+                length = request.contentLength();
+                if (length < 0) {
+                    return failed(400, "Bad Request", "Invalid Content-Length.");
+                }
+                if (length > config.maxBodySize) {
+                    return failed(413, "Payload Too Large", "Request body too large.");
+                }
+                if (length == 0) {
+                    return EMPTY;
+                }
+            }
+
+            RequestBody body = new RequestBody(length, transferEncoding != null);
+            String contentType = request.header("content-type");
+            String mediaType = contentType == null ? "" : contentType.split(";", 2)[0].trim().toLowerCase(Locale.ROOT);
+            if (mediaType.isEmpty() || mediaType.equals("application/x-www-form-urlencoded")) {
+                body.parser = body.new FormParser(); // Untyped bodies have always been read as forms
+            } else if (mediaType.equals("multipart/form-data")) {
+                String boundary = parameter(contentType, "boundary");
+                if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+                    return failed(400, "Bad Request", "Missing multipart boundary.");
+                }
+                body.parser = body.new MultipartParser(boundary);
+            }
+            String expect = request.header("expect");
+            body.expectsContinue = expect != null && expect.trim().equalsIgnoreCase("100-continue");
+            return body;
+        }
+
+        private static RequestBody failed(int status, String statusMessage, String text) {
+            RequestBody body = new RequestBody(0, false);
+            body.fail(status, statusMessage, text);
+            return body;
+        }
+
+        // Value of a parameter such as boundary="abc" in a header value
+        private static String parameter(String headerValue, String name) {
+            for (String part : headerValue.split(";")) {
+                int equals = part.indexOf('=');
+                if (equals != -1 && part.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                    String value = part.substring(equals + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        // Consumes body bytes from data and returns how many belonged to the body. Fewer than length
+        // are only consumed once the body is complete (the rest is the next pipelined request) or failed
+        public int feed(byte[] data, int offset, int length) throws IOException {
+            if (complete || errorStatus != 0) {
+                return 0;
+            }
+            if (!chunked) {
+                int size = (int) Math.min(length, remaining);
+                payload(data, offset, size);
+                remaining -= size;
+                if (remaining == 0) {
+                    finish();
+                }
+                return size;
+            }
+
+            int index = offset;
+            int end = offset + length;
+            while (index < end && !complete && errorStatus == 0) {
+                if (chunkState == CHUNK_DATA) {
+                    int size = (int) Math.min(end - index, chunkRemaining);
+                    payload(data, index, size);
+                    index += size;
+                    chunkRemaining -= size;
+                    if (chunkRemaining == 0) {
+                        chunkState = CHUNK_DATA_CR;
+                    }
+                    continue;
+                }
+                byte b = data[index++];
+                switch (chunkState) {
+                    case CHUNK_SIZE:
+                        int digit = Character.digit(b, 16);
+                        if (digit != -1) {
+                            chunkRemaining = chunkRemaining * 16 + digit;
+                            chunkDigits++;
+                            if (received + chunkRemaining > config.maxBodySize) {
+                                fail(413, "Payload Too Large", "Request body too large.");
+                            }
+                        } else if (chunkDigits > 0 && (b == ';' || b == ' ' || b == '\t')) {
+                            chunkState = CHUNK_EXTENSION;
+                        } else if (chunkDigits > 0 && b == '\r') {
+                            chunkState = CHUNK_SIZE_LF;
+                        } else {
+                            fail(400, "Bad Request", "Invalid chunked body.");
+                        }
+                        break;
+                    case CHUNK_EXTENSION:
+                        if (b == '\r') {
+                            chunkState = CHUNK_SIZE_LF;
+                        }
+                        break;
+                    case CHUNK_SIZE_LF:
+                        if (b != '\n') {
+                            fail(400, "Bad Request", "Invalid chunked body.");
+                        } else if (chunkRemaining == 0) {
+                            chunkState = TRAILER_START; // Last chunk
+                        } else {
+                            chunkState = CHUNK_DATA;
+                        }
+                        break;
+                    case CHUNK_DATA_CR:
+                        chunkState = b == '\r' ? CHUNK_DATA_LF : -1;
+                        break;
+                    case CHUNK_DATA_LF:
+                        if (b == '\n') {
+                            chunkState = CHUNK_SIZE;
+                            chunkDigits = 0;
+                        } else {
+                            chunkState = -1;
+                        }
+                        break;
+                    case TRAILER_START:
+                        // Trailer fields are skipped, an empty line ends the body
+                        chunkState = b == '\r' ? FINAL_LF : TRAILER_LINE;
+                        break;
+                    case TRAILER_LINE:
+                        if (b == '\n') {
+                            chunkState = TRAILER_START;
+                        }
+                        break;
+                    case FINAL_LF:
+                        if (b == '\n') {
+                            finish();
+                        } else {
+                            chunkState = -1;
+                        }
+                        break;
+                }
+                if (chunkState == -1) {
+                    fail(400, "Bad Request", "Invalid chunked body.");
+                }
+            }
+            return index - offset;
+        }
+
+        private void payload(byte[] data, int offset, int length) throws IOException {
+            received += length;
+            if (received > config.maxBodySize) {
+                fail(413, "Payload Too Large", "Request body too large.");
+            } else if (parser != null && length > 0) {
+                parser.write(data, offset, length);
+            }
+        }
+
+        private void finish() throws IOException {
+            if (parser != null) {
+                parser.finish();
+            }
+            complete = errorStatus == 0;
+        }
+
+        private void fail(int status, String statusMessage, String text) {
+            if (errorStatus == 0) {
+                errorStatus = status;
+                errorStatusMessage = statusMessage;
+                errorText = text;
+            }
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public boolean expectsContinue() {
+            return expectsContinue && !complete && errorStatus == 0;
+        }
+
+        public int errorStatus() {
+            return errorStatus;
+        }
+
+        public String errorStatusMessage() {
+            return errorStatusMessage;
+        }
+
+        public String errorText() {
+            return errorText;
+        }
+
+        public long received() {
+            return received;
+        }
+
+        public Map<String, String> parameters() {
+            return parameters;
+        }
+
+        public List<UploadedFile> files() {
+            return files;
+        }
+
+        // Deletes the temporary files of the uploads once the request has been answered
+        @Override
+        public void close() {
+            for (UploadedFile file : files) {
+                file.delete();
+            }
+        }
+
+        private interface BodyParser {
+            void write(byte[] data, int offset, int length) throws IOException;
+
+            void finish() throws IOException;
+        }
+
+        // application/x-www-form-urlencoded, decoded byte by byte as it arrives
+        private class FormParser implements BodyParser {
+            private byte[] token = new byte[64];
+            private int tokenLength = 0;
+            private long formBytes = 0;
+            private String name; // null while the name of a pair is read
+            private int escape = 0; // Hex digits of a %XX escape read so far
+            private byte escapeDigit;
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                for (int i = offset; i < offset + length && errorStatus == 0; i++) {
+                    byte b = data[i];
+                    if (escape > 0) {
+                        int digit = Character.digit(b, 16);
+                        if (digit != -1 && escape == 1) {
+                            escapeDigit = b;
+                            escape = 2;
+                            continue;
+                        }
+                        if (digit != -1) {
+                            append((byte) (Character.digit(escapeDigit, 16) << 4 | digit));
+                            escape = 0;
+                            continue;
+                        }
+                        flushEscape(); // Not an escape after all, keep the characters as they are
+                    }
+                    if (b == '&') {
+                        endPair();
+                    } else if (b == '=' && name == null) {
+                        name = new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+                        tokenLength = 0;
+                    } else if (b == '+') {
+                        append((byte) ' ');
+                    } else if (b == '%') {
+                        escape = 1;
+                    } else {
+                        append(b);
+                    }
+                }
+            }
+
+            @Override
+            public void finish() {
+                endPair();
+            }
+
+            private void flushEscape() {
+                append((byte) '%');
+                if (escape == 2) {
+                    append(escapeDigit);
+                }
+                escape = 0;
+            }
+
+            private void append(byte b) {
+                if (++formBytes > config.maxFormSize) {
+                    fail(413, "Payload Too Large", "Form data too large.");
+                    return;
+                }
+                if (tokenLength == token.length) {
+                    token = Arrays.copyOf(token, token.length * 2);
+                }
+                token[tokenLength++] = b;
+            }
+
+            private void endPair() {
+                if (escape > 0) {
+                    flushEscape();
+                }
+                String value = new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+                if (name == null) {
+                    name = value; // A pair without '=' has an empty value
+                    value = "";
+                }
+                if (!name.isEmpty()) {
+                    parameters.put(name, value);
+                }
+                name = null;
+                tokenLength = 0;
+            }
+        }
+
+        // multipart/form-data. The delimiter is searched for with a KMP matcher that keeps no copy of the
+        // input: bytes that could start a delimiter are held back as a match length and, if the match
+        // fails, replayed from the delimiter itself. Text fields go to parameters, files to UploadedFile
+        private class MultipartParser implements BodyParser {
+            private static final int PREAMBLE = 0;
+            private static final int DELIMITER_END = 1;
+            private static final int CLOSE_DASH = 2;
+            private static final int DELIMITER_LF = 3;
+            private static final int PART_HEADERS = 4;
+            private static final int PART_DATA = 5;
+            private static final int EPILOGUE = 6;
+
+            private final byte[] delimiter;
+            private final int[] failure;
+            private int matched = 2; // The first delimiter has no CRLF in front of it, so start as if it was seen
+            private boolean found;
+            private int state = PREAMBLE;
+            private byte[] headers = new byte[256]; // Grows up to maxHeaderSize
+            private int headersLength;
+            private long memoryBytes = 0; // Field values and uploads kept in memory
+            private String fieldName;
+            private ByteArrayOutputStream fieldValue;
+            private UploadedFile file;
+
+            public MultipartParser(String boundary) {
+                delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+                failure = new int[delimiter.length];
+                for (int i = 1, k = 0; i < delimiter.length; i++) {
+                    while (k > 0 && delimiter[i] != delimiter[k]) {
+                        k = failure[k - 1];
+                    }
+                    if (delimiter[i] == delimiter[k]) {
+                        k++;
+                    }
+                    failure[i] = k;
+                }
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                int index = offset;
+                int end = offset + length;
+                while (index < end && errorStatus == 0) {
+                    switch (state) {
+                        case PREAMBLE:
+                            index = scan(data, index, end, false);
+                            if (found) {
+                                state = DELIMITER_END;
+                            }
+                            break;
+                        case PART_DATA:
+                            index = scan(data, index, end, true);
+                            if (found) {
+                                endPart();
+                                state = DELIMITER_END;
+                            }
+                            break;
+                        case EPILOGUE:
+                            return;
+                        default:
+                            step(data[index++]);
+                    }
+                }
+            }
+
+            // Searches data for the delimiter, passing the bytes before it to the current part when emit
+            // is set. Returns the index after the delimiter if it was found, else end
+            private int scan(byte[] data, int start, int end, boolean emit) throws IOException {
+                found = false;
+                int run = start; // First byte of the part data not passed on yet
+                for (int i = start; i < end; i++) {
+                    byte b = data[i];
+                    while (matched > 0 && b != delimiter[matched]) {
+                        int fallback = failure[matched - 1];
+                        if (emit) {
+                            partData(delimiter, 0, matched - fallback); // Held back bytes that were data after all
+                        }
+                        matched = fallback;
+                    }
+                    if (b == delimiter[matched]) {
+                        if (matched == 0 && emit && i > run) {
+                            partData(data, run, i - run);
+                        }
+                        matched++;
+                        run = i + 1;
+                        if (matched == delimiter.length) {
+                            matched = 0;
+                            found = true;
+                            return i + 1;
+                        }
+                    }
+                }
+                if (emit && end > run) {
+                    partData(data, run, end - run);
+                }
+                return end;
+            }
+
+            private void step(byte b) throws IOException {
+                switch (state) {
+                    case DELIMITER_END:
+                        if (b == '-') {
+                            state = CLOSE_DASH;
+                        } else if (b == '\r') {
+                            state = DELIMITER_LF;
+                        } else if (b != ' ' && b != '\t') { // Transport padding may follow the boundary
+                            fail(400, "Bad Request", "Invalid multipart body.");
+                        }
+                        break;
+                    case CLOSE_DASH:
+                        if (b == '-') {
+                            state = EPILOGUE;
+                        } else {
+                            fail(400, "Bad Request", "Invalid multipart body.");
+                        }
+                        break;
+                    case DELIMITER_LF:
+                        if (b == '\n') {
+                            state = PART_HEADERS;
+                            headersLength = 0;
+                        } else {
+                            fail(400, "Bad Request", "Invalid multipart body.");
+                        }
+                        break;
+                    case PART_HEADERS:
+                        if (headersLength == headers.length) {
+                            if (headersLength >= config.maxHeaderSize) {
+                                fail(400, "Bad Request", "Multipart headers too large.");
+                                return;
+                            }
+                            headers = Arrays.copyOf(headers, Math.min(headersLength * 2, config.maxHeaderSize));
+                        }
+                        headers[headersLength++] = b;
+                        if (b != '\n') {
+                            break;
+                        }
+                        if (headersLength < 2 || headers[headersLength - 2] != '\r') {
+                            fail(400, "Bad Request", "Invalid multipart body."); // Header lines must end with CRLF
+                            return;
+                        }
+                        // Headers end with an empty line, which is all there is when a part has no headers
+                        if (headersLength == 2 || headersLength >= 4 && headers[headersLength - 3] == '\n' && headers[headersLength - 4] == '\r') {
+                            startPart();
+                            state = PART_DATA;
+                        }
+                        break;
+                }
+            }
+
+            private void startPart() throws IOException {
+                String disposition = null;
+                String contentType = null;
+                for (String line : new String(headers, 0, headersLength, StandardCharsets.UTF_8).split("\r\n")) {
+                    int colon = line.indexOf(':');
+                    if (colon == -1) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    if (name.equalsIgnoreCase("content-disposition")) {
+                        disposition = line.substring(colon + 1);
+                    } else if (name.equalsIgnoreCase("content-type")) {
+                        contentType = line.substring(colon + 1).trim();
+                    }
+                }
+                fieldName = disposition != null ? parameter(disposition, "name") : null;
+                String fileName = disposition != null ? parameter(disposition, "filename") : null;
+                if (fieldName == null) {
+                    fail(400, "Bad Request", "Invalid multipart body.");
+                } else if (fileName != null) {
+                    file = new UploadedFile(fieldName, fileName, contentType == null ? "application/octet-stream" : contentType);
+                    files.add(file);
+                } else {
+                    fieldValue = new ByteArrayOutputStream();
+                }
+            }
+
+            private void partData(byte[] data, int offset, int length) throws IOException {
+                if (file != null) {
+                    if (!file.isOnDisk() && (file.size() + length > config.uploadMemoryThreshold || memoryBytes + length > config.maxFormSize)) {
+                        memoryBytes -= file.size();
+                        file.spill(); // Too large to keep in memory, continue in a temporary file
+                    }
+                    if (!file.isOnDisk()) {
+                        memoryBytes += length;
+                    }
+                    file.write(data, offset, length);
+                } else if (fieldValue != null) {
+                    memoryBytes += length;
+                    if (memoryBytes > config.maxFormSize) {
+                        fail(413, "Payload Too Large", "Form data too large.");
+                        return;
+                    }
+                    fieldValue.write(data, offset, length);
+                }
+            }
+
+            private void endPart() throws IOException {
+                if (file != null) {
+                    file.finish();
+                    file = null;
+                } else if (fieldValue != null) {
+                    parameters.put(fieldName, new String(fieldValue.toByteArray(), StandardCharsets.UTF_8));
+                    fieldValue = null;
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                if (state != EPILOGUE) {
+                    fail(400, "Bad Request", "Invalid multipart body."); // Body ended before the closing delimiter
+                }
+                if (file != null) {
+                    file.finish();
+                }
+            }
+        }
+
+        // A file part of a multipart upload, kept in memory while small and in a temporary file in
+        // uploadDir beyond that. The temporary file is deleted when the request body is closed
+        static class UploadedFile {
+            private final String fieldName;
+            private final String fileName;
+            private final String contentType;
+            private long size = 0;
+            private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+            private Path tempFile;
+            private OutputStream fileOut;
+
+            public UploadedFile(String fieldName, String fileName, String contentType) {
+                this.fieldName = fieldName;
+                this.fileName = fileName;
+                this.contentType = contentType;
+            }
+
+            public void write(byte[] data, int offset, int length) throws IOException {
+                if (fileOut != null) {
+                    fileOut.write(data, offset, length);
+                } else {
+                    memory.write(data, offset, length);
+                }
+                size += length;
+            }
+
+            public void spill() throws IOException {
+                tempFile = Files.createTempFile(Paths.get(config.uploadDir), "upload-", ".tmp");
+                fileOut = new BufferedOutputStream(Files.newOutputStream(tempFile), 65536); // Part data arrives in short runs between possible delimiters
+                memory.writeTo(fileOut);
+                memory = null;
+            }
+
+            public void finish() throws IOException {
+                if (fileOut != null) {
+                    fileOut.close();
+                }
+            }
+
+            public InputStream open() throws IOException {
+                return tempFile != null ? Files.newInputStream(tempFile) : new ByteArrayInputStream(memory.toByteArray());
+            }
+
+            public void delete() {
+                try {
+                    finish();
+                    if (tempFile != null) {
+                        Files.deleteIfExists(tempFile);
+                    }
+                } catch (IOException ex) {
+                    Log.error("Could not delete upload " + tempFile, ex);
+                }
+            }
+
+            public boolean isOnDisk() {
+                return tempFile != null;
+            }
+
+            public String fieldName() {
+                return fieldName;
+            }
+
+            public String fileName() {
+                return fileName;
+            }
+
+            public String contentType() {
+                return contentType;
+            }
+
+            public long size() {
+                return size;
+            }
+        }
+    }
+
+    // Per-client request limit: a token bucket of rateLimitBurst requests refilled at rateLimit per second.
+    // Each address's bucket is a single long, the time at which it will be full again (the GCRA form of a
+    // token bucket), so admitting a request is one map lookup and one CAS. A full bucket holds no more
+    // information than a missing one, so those entries are swept out every few seconds
+    private static class RateLimiter {
+        private static final long SWEEP_INTERVAL = 10_000_000_000L;
+        private static final ConcurrentHashMap<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<>();
+        private static final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+
+        // Returns 0 when the request may proceed, otherwise the seconds until it would be admitted
+        public static long acquire(InetAddress address) {
+            if (config.rateLimit <= 0 || address == null) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long interval = (long) (1_000_000_000L / config.rateLimit); // Time to earn one token
+            long tolerance = interval * (Math.max(config.rateLimitBurst, 1) - 1); // How far ahead of now a bucket may be drawn
+            AtomicLong bucket = buckets.computeIfAbsent(address, key -> new AtomicLong(now));
+            while (true) {
+                long fullAt = bucket.get();
+                long start = Math.max(fullAt, now);
+                if (start - now > tolerance) {
+                    return (start - tolerance - now + 999_999_999L) / 1_000_000_000L; // Rounded up, at least 1
+                }
+                if (bucket.compareAndSet(fullAt, start + interval)) {
+                    break;
+                }
+            }
+            long sweep = nextSweep.get();
+            if (now - sweep > 0 && nextSweep.compareAndSet(sweep, now + SWEEP_INTERVAL)) {
+                buckets.values().removeIf(entry -> entry.get() - now <= 0);
+            }
+            return 0;
+        }
+    }
+
+    // Request counters, latency histograms and gauges, exposed at metricsPath in the Prometheus
+    // text format. Recording only touches preallocated LongAdders, so it is cheap on the hot path
+    private static class Metrics {
+        private static final String[] METHODS = {"GET", "POST", "HEAD", "other"};
+        private static final int[] STATUSES = {200, 206, 304, 400, 403, 404, 408, 413, 414, 416, 429, 431, 500, 501, 503};
+        private static final LongAdder[][] requests = new LongAdder[METHODS.length][STATUSES.length + 1]; // Last column: other statuses
+        private static final LongAdder bytesIn = new LongAdder();
+        private static final LongAdder bytesOut = new LongAdder();
+        private static final LongAdder activeConnections = new LongAdder();
+        private static final Histogram parse = new Histogram("http_request_parse_seconds", "Time spent parsing request heads.");
+        private static final Histogram lookup = new Histogram("http_file_lookup_seconds", "Time spent normalizing request paths and looking them up in the file index.");
+        private static final Histogram write = new Histogram("http_response_write_seconds", "Time from the start of a response until its last byte is handed to the socket.");
+
+        static {
+            for (LongAdder[] row : requests) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = new LongAdder();
+                }
+            }
+        }
+
+        public static void request(String method, int status, long bytes) {
+            requests[methodIndex(method)][statusIndex(status)].increment();
+            bytesOut.add(bytes);
+        }
+
+        private static int methodIndex(String method) {
+            for (int i = 0; i < METHODS.length - 1; i++) {
+                if (METHODS[i].equals(method)) {
+                    return i;
+                }
+            }
+            return METHODS.length - 1;
+        }
+
+        private static int statusIndex(int status) {
+            for (int i = 0; i < STATUSES.length; i++) {
+                if (STATUSES[i] == status) {
+                    return i;
+                }
+            }
+            return STATUSES.length;
+        }
+
+        public static String describe() {
+            StringBuilder text = new StringBuilder(8192);
+            text.append("# HELP http_requests_total Requests answered, by method and status.\n# TYPE http_requests_total counter\n");
+            for (int m = 0; m < METHODS.length; m++) {
+                for (int s = 0; s <= STATUSES.length; s++) {
+                    long count = requests[m][s].sum();
+                    if (count > 0) {
+                        text.append("http_requests_total{method=\"").append(METHODS[m]).append("\",status=\"")
+                                .append(s < STATUSES.length ? String.valueOf(STATUSES[s]) : "other").append("\"} ").append(count).append('\n');
+                    }
+                }
+            }
+            value(text, "http_request_bytes_total", "counter", "Request bytes received, heads and bodies.", bytesIn.sum());
+            value(text, "http_response_bytes_total", "counter", "Response body bytes sent.", bytesOut.sum());
+            value(text, "http_active_connections", "gauge", "Open client connections.", activeConnections.sum());
+            if (threadPool instanceof ThreadPoolExecutor) {
+                value(text, "http_thread_pool_queue_depth", "gauge", "Connections waiting for a pool thread.", ((ThreadPoolExecutor) threadPool).getQueue().size());
+            }
+            if (responseCache != null) {
+                value(text, "http_cache_hits_total", "counter", "Response cache hits.", responseCache.hits.sum());
+                value(text, "http_cache_misses_total", "counter", "Response cache misses.", responseCache.misses.sum());
+                value(text, "http_cache_evictions_total", "counter", "Response cache evictions.", responseCache.evictions.sum());
+                value(text, "http_cache_entries", "gauge", "Responses held in the cache.", responseCache.entries.size());
+                value(text, "http_cache_bytes", "gauge", "Bytes held in the cache.", responseCache.size.get());
+            }
+            parse.describe(text);
+            lookup.describe(text);
+            write.describe(text);
+            return text.toString();
+        }
+
+        private static void value(StringBuilder text, String name, String type, String help, long value) {
+            text.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(' ').append(type).append('\n')
+                    .append(name).append(' ').append(value).append('\n');
+        }
+
+        // Log-linear histogram in the style of HdrHistogram: every power of two of microseconds is split
+        // into SUB_BUCKETS equal buckets, so a value is known within 1/16 (about 6%) from 1 microsecond up
+        // to about a minute
+        private static class Histogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB_BUCKETS = 1 << SUB_BITS;
+            private static final int MAX_EXPONENT = 26; // 2^26 microseconds is about 67 seconds, slower values share the last bucket
+            private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+            private final String name;
+            private final String help;
+            private final LongAdder[] counts = new LongAdder[BUCKETS];
+            private final LongAdder sumNanos = new LongAdder();
+
+            public Histogram(String name, String help) {
+                this.name = name;
+                this.help = help;
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] = new LongAdder();
+                }
+            }
+
+            public void record(long nanos) {
+                long micros = Math.max(nanos, 0) / 1000;
+                counts[index(micros)].increment();
+                sumNanos.add(nanos);
+            }
+
+            private static int index(long micros) {
+                if (micros < SUB_BUCKETS) {
+                    return (int) micros;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(micros);
+                int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+                return Math.min((exponent - SUB_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+            }
+
+            // Largest value in microseconds that still falls into bucket i
+            private static long upperBound(int i) {
+                if (i < SUB_BUCKETS) {
+                    return i;
+                }
+                int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+                long lower = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BITS);
+                return lower + (1L << (exponent - SUB_BITS)) - 1;
+            }
+
+            public void describe(StringBuilder text) {
+                text.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" histogram\n");
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS - 1; i++) {
+                    long count = counts[i].sum();
+                    if (count == 0) {
+                        continue; // Cumulative buckets that add nothing are left out; a bucket once shown stays
+                    }
+                    cumulative += count;
+                    // Bucket bounds are whole microseconds, so a value below upperBound + 1 belongs to it
+                    text.append(name).append("_bucket{le=\"").append((upperBound(i) + 1) / 1e6).append("\"} ").append(cumulative).append('\n');
+                }
+                cumulative += counts[BUCKETS - 1].sum();
+                text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+                text.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+                text.append(name).append("_count ").append(cumulative).append('\n');
+            }
+        }
+    }
+
+    // Non-blocking engine (engine=nio): the main thread accepts connections and hands them
+    // round-robin to a few selector event loops, so idle or slow clients never hold a thread
+    static class NioEngine {
+
+        private final EventLoop[] eventLoops;
+        private int nextLoop = 0;
+        private volatile ServerSocketChannel serverChannel;
+
+        public NioEngine(int loopCount) throws IOException {
+            eventLoops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                eventLoops[i] = new EventLoop();
+            }
+        }
+
+        public void run(int port) throws IOException {
+            for (int i = 0; i < eventLoops.length; i++) {
+                Thread loopThread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+                loopThread.start();
+            }
+
+            try (ServerSocketChannel serverChannel = openListener(port)) {
+                this.serverChannel = serverChannel;
+                System.out.println("Web Server is listening on port " + port + " (nio engine, " + eventLoops.length + " event loops)"); // Print listening message
+
+                while (!shuttingDown) {
+                    SocketChannel channel;
+                    try {
+                        channel = serverChannel.accept(); // Accept incoming connection
+                    } catch (ClosedChannelException ex) {
+                        break; // Closed by shutdown
+                    }
+                    eventLoops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                }
+            }
+        }
+
+        // Stops accepting and lets every event loop drain its connections until the deadline
+        public void shutdown(long deadline) throws IOException, InterruptedException {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            for (EventLoop loop : eventLoops) {
+                loop.drain(deadline);
+            }
+            for (EventLoop loop : eventLoops) {
+                // The loops close what is left at the deadline themselves; the extra second covers their last pass
+                loop.stopped.await(Math.max(0, deadline - System.currentTimeMillis()) + 1000, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private static class EventLoop implements Runnable {
+            private final Selector selector;
+            private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+            private final CountDownLatch stopped = new CountDownLatch(1);
+            private long lastIdleCheck = System.currentTimeMillis();
+            private volatile long drainDeadline; // Set on shutdown, 0 while serving normally
+
+            public EventLoop() throws IOException {
+                selector = Selector.open();
+            }
+
+            public void register(SocketChannel channel) {
+                newChannels.add(channel);
+                selector.wakeup();
+            }
+
+            public void drain(long deadline) {
+                drainDeadline = deadline;
+                selector.wakeup();
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        long deadline = drainDeadline;
+                        if (deadline != 0 && closeDrainedConnections(deadline)) {
+                            break;
+                        }
+                        selector.select(deadline != 0 ? 50 : 1000);
+                        registerNewChannels();
+
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            NioConnection connection = (NioConnection) key.attachment();
+                            try {
+                                if (key.isReadable()) {
+                                    connection.onReadable();
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    connection.onWritable();
+                                }
+                            } catch (IOException | RuntimeException ex) {
+                                if (!(ex instanceof IOException)) {
+                                    Log.error("Request handling failed", ex);
+                                }
+                                connection.close();
+                            }
+                        }
+
+                        closeIdleConnections();
+                    } catch (IOException ex) {
+                        Log.error("Event loop error", ex);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    Log.error("Could not close selector", ex);
+                }
+                stopped.countDown();
+            }
+
+            // Closes the connections with no request in progress, or all of them once the deadline has
+            // passed; returns true when none are left
+            private boolean closeDrainedConnections(long deadline) {
+                boolean expired = System.currentTimeMillis() >= deadline;
+                boolean open = false;
+                for (SelectionKey key : selector.keys()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection == null || !key.isValid()) {
+                        continue;
+                    }
+                    if (expired || connection.isIdle()) {
+                        connection.close();
+                    } else {
+                        open = true;
+                    }
+                }
+                return !open && newChannels.isEmpty();
+            }
+
+            private void registerNewChannels() {
+                SocketChannel channel;
+                while ((channel = newChannels.poll()) != null) {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        NioConnection connection = new NioConnection(channel, key);
+                        connection.handler.chunkSize = channel.socket().getSendBufferSize();
+                        key.attach(connection);
+                    } catch (IOException ex) {
+                        Log.error("Could not register connection", ex);
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            // Nothing left to clean up
+                        }
+                    }
+                }
+            }
+
+            private void closeIdleConnections() {
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck < 1000) {
+                    return;
+                }
+                lastIdleCheck = now;
+                for (SelectionKey key : selector.keys()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (connection != null) {
+                        connection.checkTimeouts(now);
+                    }
+                }
+            }
+        }
+
+        // Collects a handler's response as parts the event loop can queue without copying: the written
+        // bytes themselves, shared buffers such as cached bodies, and FileRegions added by sendFileBody
+        static class ResponseBuffer extends ByteArrayOutputStream {
+            private final List<Object> parts = new ArrayList<>(); // ByteBuffers and FileRegions
+            private Path file; // File of the regions added so far, opened once for all of them
+            private FileChannel fileChannel;
+            private FileRegion lastRegion;
+
+            public void appendRegion(ByteBuffer region) {
+                closeSegment();
+                parts.add(region);
+            }
+
+            // The handler's own channel is closed when it returns, so the queued regions read from one of their own
+            public void appendFile(Path path, long position, long count) throws IOException {
+                closeSegment();
+                if (!path.equals(file)) {
+                    closeFile();
+                    fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                    file = path;
+                }
+                lastRegion = new FileRegion(fileChannel, position, count);
+                parts.add(lastRegion);
+            }
+
+            public void drainTo(Deque<Object> queue) {
+                closeSegment();
+                closeFile();
+                queue.addAll(parts);
+                parts.clear();
+            }
+
+            // Drops a response that will not be queued
+            public void discard() {
+                for (Object part : parts) {
+                    if (part instanceof FileRegion) {
+                        ((FileRegion) part).close();
+                    }
+                }
+                parts.clear();
+                file = null;
+                fileChannel = null;
+                lastRegion = null;
+            }
+
+            // The channel is closed once the last region read from it is sent
+            private void closeFile() {
+                if (lastRegion != null) {
+                    lastRegion.closesFile = true;
+                }
+                file = null;
+                fileChannel = null;
+                lastRegion = null;
+            }
+
+            private void closeSegment() {
+                if (count > 0) {
+                    parts.add(ByteBuffer.wrap(buf, 0, count));
+                    buf = new byte[256]; // The wrapped array now belongs to the queued segment
+                    count = 0;
+                }
+            }
+        }
+
+        // Part of a file waiting in a connection's write queue. The event loop sends it with transferTo, so the
+        // kernel copies it from the page cache to the socket and nothing is mapped into the JVM per request
+        static class FileRegion {
+            private final FileChannel file;
+            private long position;
+            private final long end;
+            private boolean closesFile; // Last region of its response read from file
+
+            FileRegion(FileChannel file, long position, long count) {
+                this.file = file;
+                this.position = position;
+                this.end = position + count;
+            }
+
+            // Sends as much of the region as the socket takes; returns true once all of it is sent
+            public boolean writeTo(SocketChannel channel) throws IOException {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent == 0 && position >= file.size()) {
+                    // Sizes come from the index, the file may have shrunk before the watcher noticed
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                position += sent;
+                if (position < end) {
+                    return false;
+                }
+                if (closesFile) {
+                    close();
+                }
+                return true;
+            }
+
+            public void close() {
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                    // Only read from
+                }
+            }
+        }
+
+        private static class NioConnection {
+            private final SocketChannel channel;
+            private final SelectionKey key;
+            // No socket: responses are collected in a buffer and written by the event loop
+            private final ClientHandler handler = new ClientHandler(null);
+            private final Deque<Object> writeQueue = new ArrayDeque<>(); // ByteBuffers and FileRegions, in order
+            private final ByteBuffer[] gather = new ByteBuffer[16]; // Buffers handed to one write, reused
+            private final HttpRequestParser request = new HttpRequestParser();
+            private ByteBuffer buffer; // Pooled while a request is arriving, returned once the connection is idle
+            private RequestBody body; // Body of the current request while it arrives
+            private ByteBuffer bodyBuffer; // Pooled buffer for body reads once the head is in buffer
+            private int consumed; // Bytes of buffer (bodyBuffer once the body is read into it) that belong to the current request
+            private int requestCount = 0;
+            private boolean closeAfterWrite = false;
+            private long lastActive = System.currentTimeMillis();
+            private long headStarted; // When the buffer of the request head that is arriving was taken
+            private long parseNanos; // Parse time of the request head that is still arriving
+            private long writeStarted; // Start of the oldest response still in writeQueue, 0 when it is empty
+
+            public NioConnection(SocketChannel channel, SelectionKey key) {
+                this.channel = channel;
+                this.key = key;
+                handler.remoteAddress = channel.socket().getInetAddress();
+                Metrics.activeConnections.increment();
+            }
+
+            public void onReadable() throws IOException {
+                int bytesRead;
+                if (body != null) {
+                    // Body bytes go through a second pooled buffer so the request head stays in buffer
+                    if (bodyBuffer == null) {
+                        bodyBuffer = BufferPool.acquire();
+                    }
+                    bodyBuffer.clear();
+                    bytesRead = channel.read(bodyBuffer);
+                    if (bytesRead > 0) {
+                        consumed = body.feed(bodyBuffer.array(), 0, bytesRead);
+                    }
+                } else {
+                    if (buffer == null) {
+                        buffer = BufferPool.acquire();
+                        request.reset();
+                        headStarted = System.currentTimeMillis();
+                    }
+                    bytesRead = channel.read(buffer);
+                    if (!buffer.hasRemaining() && buffer.capacity() < config.maxHeaderSize) {
+                        buffer = BufferPool.grow(buffer, buffer.position()); // A reload raised maxHeaderSize
+                    }
+                }
+                if (bytesRead == -1) {
+                    close();
+                    return;
+                }
+                Metrics.bytesIn.add(bytesRead);
+                lastActive = System.currentTimeMillis();
+                processRequests();
+                flushWrites();
+            }
+
+            // Idle connections get keepAliveTimeout; a request head must be complete within readTimeout of its
+            // first byte and a body may pause for readTimeout; a response may wait writeTimeout for the client
+            public void checkTimeouts(long now) {
+                if (!writeQueue.isEmpty()) {
+                    if (config.writeTimeout > 0 && now - lastActive > config.writeTimeout) {
+                        close();
+                    }
+                } else if (buffer == null && body == null) {
+                    if (now - lastActive > config.keepAliveTimeout) {
+                        close();
+                    }
+                } else if (config.readTimeout > 0 && (body != null ? now - lastActive : now - headStarted) > config.readTimeout) {
+                    try {
+                        sendError(408, "Request Timeout", "Request not received in time.");
+                        flushWrites();
+                    } catch (IOException ex) {
+                        close();
+                    }
+                }
+            }
+
+            // Served a request, and no further request arriving and no response waiting to be written
+            public boolean isIdle() {
+                return requestCount > 0 && buffer == null && body == null && writeQueue.isEmpty();
+            }
+
+            public void onWritable() throws IOException {
+                lastActive = System.currentTimeMillis();
+                flushWrites();
+            }
+
+            // Handles every complete request that has arrived, in order
+            private void processRequests() throws IOException {
+                while (!closeAfterWrite && buffer != null) {
+                    if (body == null) {
+                        byte[] data = buffer.array();
+                        long parseStarted = System.nanoTime();
+                        int result = request.parse(data, buffer.position());
+                        parseNanos += System.nanoTime() - parseStarted;
+                        if (result == HttpRequestParser.NEED_MORE) {
+                            if (!request.hasStarted()) {
+                                releaseBuffer(); // Nothing but line breaks so far, no need to hold a buffer
+                            }
+                            return;
+                        }
+                        Metrics.parse.record(parseNanos);
+                        parseNanos = 0;
+                        if (result == HttpRequestParser.ERROR) {
+                            sendError(request.errorStatus(), request.errorStatusMessage(), request.errorText());
+                            return;
+                        }
+                        long wait = RateLimiter.acquire(handler.remoteAddress);
+                        if (wait > 0) {
+                            ResponseBuffer response = new ResponseBuffer();
+                            handler.sendRetryLater(response, 429, "Too Many Requests", wait);
+                            handler.recordRequest(request.method(), request.target(), 0);
+                            response.drainTo(writeQueue);
+                            closeAfterWrite = true;
+                            return;
+                        }
+
+                        body = RequestBody.open(request);
+                        int headerEnd = request.headerEnd();
+                        consumed = headerEnd + body.feed(data, headerEnd, buffer.position() - headerEnd);
+                        if (body.expectsContinue()) {
+                            writeQueue.add(ByteBuffer.wrap(RequestBody.CONTINUE));
+                        }
+                    }
+                    if (body.errorStatus() != 0) {
+                        sendError(body.errorStatus(), body.errorStatusMessage(), body.errorText());
+                        return;
+                    }
+                    if (!body.isComplete()) {
+                        return; // The rest of the body arrives through onReadable
+                    }
+                    dispatch();
+                }
+            }
+
+            private void dispatch() throws IOException {
+                requestCount++;
+                handler.keepAlive = request.isKeepAlive() && requestCount < config.maxKeepAliveRequests && !shuttingDown;
+                ResponseBuffer response = new ResponseBuffer();
+                try {
+                    handler.handleRequest(request.method(), request.target(), request, body, response);
+                } catch (IOException | RuntimeException ex) {
+                    response.discard();
+                    throw ex;
+                } finally {
+                    body.close();
+                }
+                response.drainTo(writeQueue);
+                if (writeStarted == 0) {
+                    writeStarted = handler.responseStarted;
+                }
+                closeAfterWrite = !handler.keepAlive;
+
+                if (bodyBuffer != null) {
+                    // The bytes after the body, if any, arrived in bodyBuffer, which becomes the request buffer
+                    BufferPool.release(buffer);
+                    buffer = bodyBuffer;
+                    bodyBuffer = null;
+                }
+
+                // Move pipelined bytes of the next request to the front of the buffer
+                byte[] data = buffer.array();
+                int remaining = buffer.position() - consumed;
+                System.arraycopy(data, consumed, data, 0, remaining);
+                buffer.position(remaining);
+                body = null;
+                request.reset();
+                headStarted = System.currentTimeMillis(); // A pipelined head may already be in the buffer
+                if (remaining == 0) {
+                    releaseBuffer();
+                }
+            }
+
+            private void releaseBuffer() {
+                if (buffer != null) {
+                    BufferPool.release(buffer);
+                    buffer = null;
+                }
+                if (bodyBuffer != null) {
+                    BufferPool.release(bodyBuffer);
+                    bodyBuffer = null;
+                }
+            }
+
+            private void sendError(int statusCode, String statusMessage, String responseText) throws IOException {
+                handler.keepAlive = false;
+                ResponseBuffer response = new ResponseBuffer();
+                handler.sendResponse(response, statusCode, statusMessage, "text/plain", responseText);
+                handler.recordRequest("-", "-", 0);
+                response.drainTo(writeQueue);
+                closeAfterWrite = true;
+            }
+
+            private void flushWrites() throws IOException {
+                while (!writeQueue.isEmpty()) {
+                    // One gathering write takes the queued buffers together, such as a response's headers and
+                    // each chunk's size line, data and CRLF
+                    boolean full;
+                    if (writeQueue.peek() instanceof FileRegion) {
+                        full = !((FileRegion) writeQueue.peek()).writeTo(channel);
+                        if (!full) {
+                            writeQueue.poll();
+                        }
+                    } else {
+                        int count = 0;
+                        for (Object queued : writeQueue) {
+                            if (!(queued instanceof ByteBuffer)) {
+                                break; // File regions are sent on their own
+                            }
+                            gather[count++] = (ByteBuffer) queued;
+                            if (count == gather.length) {
+                                break;
+                            }
+                        }
+                        channel.write(gather, 0, count);
+                        full = gather[count - 1].hasRemaining();
+                        Arrays.fill(gather, 0, count, null);
+                        while (writeQueue.peek() instanceof ByteBuffer && !((ByteBuffer) writeQueue.peek()).hasRemaining()) {
+                            writeQueue.poll();
+                        }
+                    }
+                    if (full) {
+                        // Socket buffer is full: wait for write readiness and stop reading until the backlog drains
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (writeStarted != 0) {
+                    Metrics.write.record(System.nanoTime() - writeStarted);
+                    writeStarted = 0;
+                }
+                if (closeAfterWrite) {
+                    close();
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+
+            public void close() {
+                if (channel.isOpen()) {
+                    Metrics.activeConnections.decrement();
+                }
+                if (body != null) {
+                    body.close(); // Drops the temporary files of an unfinished upload
+                    body = null;
+                }
+                releaseBuffer();
+                for (Object queued : writeQueue) {
+                    if (queued instanceof FileRegion) {
+                        ((FileRegion) queued).close(); // Files of responses that will not be sent
+                    }
+                }
+                writeQueue.clear();
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.error("Could not close connection", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+#!/bin/bash
+
+if [ ! -f "config.ini" ]; then
+    echo "Error: config.ini file not found. Please make sure it exists in the same directory as bench.sh."
+    exit 1
+fi
+
+javac Server.java Benchmarks.java LoadGenerator.java
+
+if [ $? -ne 0 ]; then
+    echo "Compilation failed. Please check for errors in your code."
+    exit 1
+fi
+
+if [ "$1" == "load" ]; then
+    # Replay traffic.jsonl against a server started with run.sh: bench.sh load [host:port] [connections] [seconds]
+    shift
+    java LoadGenerator traffic.jsonl "$@"
+else
+    # Microbenchmarks of the request path: bench.sh [name filter]
+    java Benchmarks "$@"
+fi